@@ -0,0 +1,543 @@
+"""
+ Conformance and throughput regression tests of the host code and the
+ card command paths
+
+ Runs X25519 test vectors through each way a shared secret or public key
+ is computed (host reference code and the card command paths), then
+ measures throughput and compares it with a stored baseline. The run
+ fails on any wrong result and on any throughput that dropped below the
+ baseline by more than the tolerance.
+
+    python jc_conformance.py                       simulated card
+    python jc_conformance.py --card                real card in the first reader
+    python jc_conformance.py --wycheproof x25519_test.json
+    python jc_conformance.py --long                adds 1,000,000 iterations
+    python jc_conformance.py --update-baseline     store current throughput
+
+ By default, the card paths run on the simulated card, a separate Python
+ reimplementation of the applet (jc_simulator.py). Such runs do not
+ execute Curve25519Test.java or ModArith.java; only runs with --card, on
+ a card or a card simulator with a PC/SC reader, test the applet.
+
+ With the diagnostics build of the applet (curve25519_diag.cap), the
+ modular arithmetic of ModArith.java is checked against Python integers,
+ at the edges of the operand range and for random operands. Other builds
+ skip these checks.
+
+ Vectors: RFC 7748 sections 5.2 (including the iterations) and 6.1, and
+ optionally the Wycheproof X25519 vectors (x25519_test.json from
+ https://github.com/C2SP/wycheproof, passed with --wycheproof).
+
+ Throughput is stored relative to host-smul measured in the same run,
+ so the baseline does not depend on the speed of the host. Baselines are
+ kept per target in jc_baseline.json. A target without a baseline fails
+ the run, store one with --update-baseline.
+
+ The card only computes on Curve25519, not on its twist, so public keys on
+ the twist cannot be sent to it. Such vectors are counted as not
+ applicable for the card paths. This does not affect the iteration
+ vectors: from the second step on, u is the output of the previous step
+ and thus on the curve.
+
+ =======================================================================
+
+ This is free and unencumbered software released into the public domain.
+
+ Anyone is free to copy, modify, publish, use, compile, sell, or
+ distribute this software, either in source code form or as a compiled
+ binary, for any purpose, commercial or non-commercial, and by any
+ means.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ OTHER DEALINGS IN THE SOFTWARE.
+"""
+
+import argparse
+import contextlib
+import io
+import json
+import os
+import random
+import sys
+from timeit import default_timer as timer
+
+from jc_curve25519 import JCCurve25519, JCCurve25519Pipeline
+
+# RFC 7748, section 5.2: (scalar, u, output), all little-endian hex
+RFC7748_VECTORS = [
+    ("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4",
+     "e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c",
+     "c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552"),
+    ("4b66e9d4d1b4673c5ad22691957d6af5c11b6421e0ea01d42ca4169e7918ba0d",
+     "e5210f12786811d3f4b7959d0538ae2c31dbe7106fc03c3efc4cd549c715a493",
+     "95cbde9476e8907d7aade45cb4b873f88b595a68799fa152e6f8f7647aac7957"),
+]
+
+# RFC 7748, section 5.2: k = u = 9, then k, u = X25519(k, u), k
+RFC7748_ITERATIONS = [
+    (1, "422c8e7a6227d7bca1350b3e2bb7279f7897b87bb6854b783c60e80311ae3079"),
+    (1000, "684cf59ba83309552800ef566f2f4d3c1c3887c49360e3875f2eb94d99532c51"),
+    (1000000, "7c3911e0ab2586fd864497297e575e6f3bc601c0883c30df5f4dd2d24f651424"),
+]
+
+# RFC 7748, section 6.1
+ALICE_SK = "77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a"
+ALICE_PK = "8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a"
+BOB_SK = "5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb"
+BOB_PK = "de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f"
+SHARED = "4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742"
+
+BASE = "09" + "00" * 31
+
+# Throughput may drop by this fraction of the baseline before failing
+TOLERANCE = 0.25
+
+# Throughput is compared relative to this path, measured in the same run
+REFERENCE = "host-smul"
+
+
+class NotApplicable(Exception):
+    """ The vector cannot be computed by this path (public key on the twist)
+    """
+    pass
+
+
+def decode_scalar(k):
+    return JCCurve25519.clamp(JCCurve25519.unpack_le(bytes.fromhex(k)))
+
+
+def decode_u(u):
+    # Mask the top bit and reduce, as required by RFC 7748
+    return (JCCurve25519.unpack_le(bytes.fromhex(u)) & ((1 << 255) - 1)) % JCCurve25519.p
+
+
+def encode_u(u):
+    return bytes(JCCurve25519.pack_le(u)).hex()
+
+
+def on_curve(u):
+    """ True if u is the coordinate of a point on Curve25519, not the twist
+    """
+    p = JCCurve25519.p
+    v = (u * u * u + JCCurve25519.a_m * u * u + u) % p
+    return JCCurve25519.legendre_symbol(v, p) != -1
+
+
+def quiet():
+    # The JCCurve25519 methods print the execution time of each APDU
+    return contextlib.redirect_stdout(io.StringIO())
+
+
+# Computation paths: x25519(k, u) on hex strings, returns hex or raises
+# NotApplicable. Card errors are raised as exceptions
+
+class HostPath:
+    name = "host"
+
+    def x25519(self, k, u):
+        return encode_u(JCCurve25519.smul(decode_scalar(k), decode_u(u)))
+
+
+class BasePath:
+    """ Host fixed-base code (smul_base), only for u = 9
+    """
+    name = "host-base"
+
+    def x25519(self, k, u):
+        if decode_u(u) != 9:
+            raise NotApplicable()
+
+        return encode_u(JCCurve25519.smul_base(decode_scalar(k)))
+
+
+class CardPath:
+    """ LOAD_PRIVATE_KEY, then COMPUTE_SHARED_SECRET. For u = 9 the public
+        key output of LOAD_PRIVATE_KEY is the result
+    """
+    name = "card"
+
+    def __init__(self, curve):
+        self.curve = curve
+
+    def x25519(self, k, u):
+        n = decode_u(u)
+
+        if not on_curve(n):
+            raise NotApplicable()
+
+        with quiet():
+            pk = self.curve.setPrivateKey(JCCurve25519.unpack_le(bytes.fromhex(k)))
+
+            if n == 9:
+                return encode_u(pk)
+
+            return encode_u(self.curve.generateSharedSecret(n))
+
+
+class PersistentPath(CardPath):
+    """ LOAD_PRIVATE_KEY (not volatile), card reset, then
+        COMPUTE_SHARED_SECRET (key agreement initialized again on card)
+    """
+    name = "card-persistent"
+
+    def x25519(self, k, u):
+        n = decode_u(u)
+
+        if not on_curve(n):
+            raise NotApplicable()
+
+        with quiet():
+            self.curve.setPrivateKey(JCCurve25519.unpack_le(bytes.fromhex(k)), persistent=True)
+            self.curve.reconnect()
+
+            if not self.curve.keyStatus()['valid']:
+                raise Exception("Persistent key lost")
+
+            return encode_u(self.curve.generateSharedSecret(n))
+
+
+class PipelinePath(CardPath):
+    """ LOAD_PRIVATE_KEY, then the shared secret through JCCurve25519Pipeline
+    """
+    name = "pipeline"
+
+    def x25519(self, k, u):
+        n = decode_u(u)
+
+        if not on_curve(n):
+            raise NotApplicable()
+
+        with quiet():
+            self.curve.setPrivateKey(JCCurve25519.unpack_le(bytes.fromhex(k)))
+
+        return encode_u(list(JCCurve25519Pipeline(self.curve).run([n]))[0])
+
+
+class Results:
+    def __init__(self):
+        self.failures = 0
+
+    def check(self, label, ok, detail=""):
+        print("  %-40s %s%s" % (label, "ok" if ok else "FAILED", (" (" + detail + ")") if detail else ""))
+
+        if not ok:
+            self.failures += 1
+
+
+def run_vectors(path, vectors, results, label):
+    """ vectors: list of (id, k, u, expected hex, result) with result
+        'valid', 'acceptable' or 'invalid' (Wycheproof)
+    """
+    passed = 0
+    na = 0
+    failed = []
+
+    for vid, k, u, expected, result in vectors:
+        try:
+            out = path.x25519(k, u)
+        except NotApplicable:
+            na += 1
+            continue
+        except Exception as e:
+            out = None
+
+            # Rejecting a low order point (all zero result) is allowed
+            if expected == "00" * 32 and path.name != "host":
+                passed += 1
+                continue
+
+        if result == "invalid":
+            ok = out != expected
+        else:
+            ok = out == expected
+
+        if ok:
+            passed += 1
+        else:
+            failed.append(str(vid))
+
+    detail = "%d passed" % passed
+    if na > 0:
+        detail += ", %d not applicable" % na
+    if len(failed) > 0:
+        detail += ", failed: " + " ".join(failed[:10]) + (" ..." if len(failed) > 10 else "")
+
+    results.check(label + " " + path.name, len(failed) == 0, detail)
+
+
+def run_iterations(path, count, expected, results):
+    k = u = BASE
+
+    b = timer()
+
+    try:
+        for i in range(count):
+            k, u = path.x25519(k, u), k
+    except Exception as e:
+        results.check("%d iterations %s" % (count, path.name), False, "step %d: %s" % (i + 1, repr(e)))
+        return
+
+    e = timer()
+
+    results.check("%d iterations %s" % (count, path.name), k == expected, "%.1f s" % (e - b))
+
+
+def run_random_paths(curve, results, rounds=4):
+    """ Key generation on card and ephemeral keys, whose private keys are
+        not known in advance: checked against the host with the RFC 7748
+        keys of Bob as peer
+    """
+    skBob = decode_scalar(BOB_SK)
+    pkBob = decode_u(BOB_PK)
+
+    ok = True
+    for _ in range(rounds):
+        with quiet():
+            sk, pk = curve.generateKeypair()
+            ss = curve.generateSharedSecret(pkBob)
+
+        ok = ok and pk == JCCurve25519.smul_base(sk) and ss == JCCurve25519.smul(skBob, pk)
+
+    results.check("generate keypair", ok, "%d keys" % rounds)
+
+    ok = True
+    with quiet():
+        curve.precomputeEphemeral()
+
+    for _ in range(rounds):
+        with quiet():
+            pk = curve.takeEphemeral()
+            ss = curve.generateSharedSecret(pkBob)
+
+        ok = ok and ss == JCCurve25519.smul(skBob, pk)
+
+    results.check("ephemeral keys", ok, "%d keys" % rounds)
+
+
+def modarith_operands(m):
+    """ Operands smaller than m: values at the ends of the range and at
+        the byte boundaries, where carries and the final corrections of
+        ModArith change, and random values
+    """
+    values = [0, 1, 2, 0xFF, 0x100, m // 2, m // 2 + 1, (1 << 252) - 1, m - 2, m - 1]
+    values += [random.randrange(m) for _ in range(4)]
+    return values
+
+
+def run_modarith(curve, results):
+    """ The applet's ModArith (diagnostics build only) against Python
+        integers: a * b, a + b and a - b mod p and mod r for all pairs of
+        operands, and the reduction of 512 bit values
+    """
+    try:
+        with quiet():
+            curve.modArith(JCCurve25519.ARITH_ADD, 0, 0)
+    except Exception:
+        print("  skipped (needs the diagnostics build, curve25519_diag.cap)")
+        return
+
+    operations = [("mul", JCCurve25519.ARITH_MUL, lambda a, b, m: a * b % m),
+                  ("add", JCCurve25519.ARITH_ADD, lambda a, b, m: (a + b) % m),
+                  ("sub", JCCurve25519.ARITH_SUB, lambda a, b, m: (a - b) % m)]
+
+    for name, m in [("p", JCCurve25519.p), ("r", JCCurve25519.r)]:
+        operands = modarith_operands(m)
+        modR = name == "r"
+
+        for label, op, reference in operations:
+            failed = [(a, b) for a in operands for b in operands
+                      if curve.modArith(op, a, b, modR) != reference(a, b, m)]
+            results.check("%s mod %s" % (label, name), not failed,
+                          "%d pairs" % len(operands) ** 2 if not failed else "a = %x, b = %x" % failed[0])
+
+        # Products of operands, the largest values below 2^512 and m^2
+        values = [a * b for a in operands[-6:] for b in operands[-6:]]
+        values += [(1 << 512) - 1, (1 << 511), m * m, m * m - 1, ((1 << 512) - 1) // m * m]
+        values += [random.getrandbits(512) for _ in range(4)]
+        failed = [x for x in values if curve.modArith(JCCurve25519.ARITH_REDUCE, x, modR=modR) != x % m]
+        results.check("reduce mod %s" % name, not failed,
+                      "%d values" % len(values) if not failed else "x = %x" % failed[0])
+
+
+def load_wycheproof(path):
+    with open(path) as f:
+        data = json.load(f)
+
+    vectors = []
+
+    for group in data['testGroups']:
+        if group.get('curve', 'curve25519') != 'curve25519':
+            continue
+
+        for t in group['tests']:
+            vectors.append((t['tcId'], t['private'], t['public'], t['shared'], t['result']))
+
+    return vectors
+
+
+# Throughput
+
+def elapsed(operation, count):
+    b = timer()
+    operation(count)
+    return timer() - b
+
+
+def measure_throughput(curve, count, rounds=5):
+    """ Returns the operations per second of each path (best round) and the
+        throughput relative to REFERENCE (median of the rounds). Each round
+        runs all paths once, so drift of the host speed hits the reference
+        and the other paths alike
+    """
+    pks = [JCCurve25519.smul_base(JCCurve25519.clamp(JCCurve25519.unpack_le(os.urandom(32)))) for _ in range(count)]
+    sk = decode_scalar(ALICE_SK)
+
+    def host(n):
+        for i in range(n):
+            JCCurve25519.smul(sk, pks[i])
+
+    def base(n):
+        for i in range(n):
+            JCCurve25519.smul_base(pks[i])
+
+    def load(n):
+        with quiet():
+            for i in range(n):
+                curve.setPrivateKey(sk)
+
+    def compute(n):
+        with quiet():
+            curve.setPrivateKey(sk)
+            for i in range(n):
+                curve.generateSharedSecret(pks[i])
+
+    def pipeline(n):
+        with quiet():
+            curve.setPrivateKey(sk)
+        list(JCCurve25519Pipeline(curve).run(pks[0:n]))
+
+    paths = [("host-smul", host), ("host-base", base), ("card-load", load),
+             ("card-compute", compute), ("pipeline", pipeline)]
+    times = dict((name, []) for name, _ in paths)
+
+    for _ in range(rounds):
+        for name, operation in paths:
+            times[name].append(elapsed(operation, count))
+
+    rates = dict((name, count / min(t)) for name, t in times.items())
+
+    relative = {}
+    for name, t in times.items():
+        if name != REFERENCE:
+            ratios = sorted(r / x for r, x in zip(times[REFERENCE], t))
+            relative[name] = ratios[len(ratios) // 2]
+
+    return rates, relative
+
+
+def check_throughput(rates, relative, baseline, results, tolerance, update):
+    for name, ratio in sorted(relative.items()):
+        ref = baseline.get(name) if baseline is not None else None
+        detail = "%.1f ops/s, %.3f x %s" % (rates[name], ratio, REFERENCE)
+
+        if ref is None:
+            results.check("throughput " + name, update, detail + ", no baseline, run with --update-baseline")
+        else:
+            results.check("throughput " + name, ratio >= ref * (1 - tolerance), detail + ", baseline %.3f" % ref)
+
+
+def main():
+    parser = argparse.ArgumentParser(description="X25519 conformance and throughput regression tests")
+    parser.add_argument("--card", nargs="?", const="", default=None, metavar="READER",
+                        help="use a real card (in the first reader, or the one whose name contains READER)")
+    parser.add_argument("--wycheproof", metavar="FILE", help="Wycheproof x25519_test.json")
+    parser.add_argument("--long", action="store_true", help="also run 1,000,000 iterations (hours)")
+    parser.add_argument("--baseline", default="jc_baseline.json", metavar="FILE", help="throughput baseline (default: jc_baseline.json)")
+    parser.add_argument("--update-baseline", action="store_true", help="store the measured relative throughput as the new baseline")
+    parser.add_argument("--tolerance", type=float, default=TOLERANCE, help="allowed throughput drop (default: %.2f)" % TOLERANCE)
+    parser.add_argument("-n", "--operations", type=int, default=20, help="operations per throughput measurement")
+    args = parser.parse_args()
+
+    curve = JCCurve25519()
+
+    with quiet():
+        if args.card is None:
+            curve.connectSimulator()
+            target = "simulator"
+        else:
+            curve.connect(args.card if args.card != "" else None)
+            target = "card " + "".join("%02X" % b for b in curve.c.getATR())
+
+    if args.card is None:
+        print("Simulated card: card paths run on jc_simulator.py, the applet code is not tested (use --card)")
+
+    host = HostPath()
+    card = CardPath(curve)
+    paths = [host, BasePath(), card, PersistentPath(curve), PipelinePath(curve)]
+    results = Results()
+
+    print("== RFC 7748, section 6.1")
+    keys = [("Alice", ALICE_SK, BASE, ALICE_PK, "valid"), ("Bob", BOB_SK, BASE, BOB_PK, "valid"),
+            ("shared", ALICE_SK, BOB_PK, SHARED, "valid")]
+    for path in paths:
+        run_vectors(path, keys, results, "6.1")
+
+    print("== RFC 7748, section 5.2")
+    vectors = [(i + 1, k, u, out, "valid") for i, (k, u, out) in enumerate(RFC7748_VECTORS)]
+    for path in paths:
+        run_vectors(path, vectors, results, "5.2")
+
+    for count, expected in RFC7748_ITERATIONS:
+        if count > 1000 and not args.long:
+            continue
+
+        for path in [host, card]:
+            run_iterations(path, count, expected, results)
+
+    print("== Wycheproof")
+    if args.wycheproof is None:
+        print("  skipped (pass x25519_test.json with --wycheproof)")
+    else:
+        vectors = load_wycheproof(args.wycheproof)
+        for path in paths:
+            run_vectors(path, vectors, results, "%d vectors" % len(vectors))
+
+    print("== Random keys")
+    run_random_paths(curve, results)
+
+    print("== ModArith")
+    run_modarith(curve, results)
+
+    print("== Throughput (" + target + ")")
+    rates, relative = measure_throughput(curve, args.operations)
+
+    baselines = {}
+    if os.path.exists(args.baseline):
+        with open(args.baseline) as f:
+            baselines = json.load(f)
+
+    check_throughput(rates, relative, baselines.get(target), results, args.tolerance, args.update_baseline)
+
+    if args.update_baseline:
+        baselines[target] = relative
+        with open(args.baseline, "w") as f:
+            json.dump(baselines, f, indent=2, sort_keys=True)
+        print("  baseline stored in " + args.baseline)
+
+    print('\n')
+
+    if results.failures > 0:
+        print(str(results.failures) + " check(s) FAILED")
+        return 1
+
+    print("All checks passed")
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main())
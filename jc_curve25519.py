@@ -35,11 +35,23 @@
  contribution (e.g. bug fixes, improvements, ...), or a beer.
 """
 
-from smartcard.Exceptions import NoCardException
-from smartcard.System import *
-from smartcard.util import toHexString
+try:
+    from smartcard.Exceptions import NoCardException
+    from smartcard.System import *
+    from smartcard.util import toHexString
+except ImportError:
+    # pyscard is only needed for real readers, not for the simulated card
+    smartcard = None
+
+    def toHexString(b):
+        return " ".join("%02X" % x for x in b)
 from struct import *
 from timeit import default_timer as timer
+import hashlib
+import hmac
+import os
+import queue
+import threading
 
 
 class JCCurve25519:
@@ -55,6 +67,11 @@ class JCCurve25519:
     Gx_w = 0x2aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaad245a
     Gy_w = 0x20ae19a1b8a086b4e01edd2c7748d14c923d4d7e6d7c61b229e9c5a27eced3d9
 
+    # Edwards form (Ed25519): d and sqrt(-486664), the sign chosen such that
+    # the Weierstrass generator maps to the Ed25519 base point
+    d_e = 0x52036cee2b6ffe738cc740797779e89800700a4d4141d8ab75eb4dca135978a3
+    c_e = 0x70d9120b9f5ff9442d84f723fc03b0813a5e2c2eb482e57d3391fb5500ba81e7
+
     @staticmethod
     def modular_sqrt(a, p):
         """ Find a quadratic residue (mod p) of 'a'. p
@@ -256,36 +273,336 @@ class JCCurve25519:
 
         return (x * JCCurve25519.inv(z)) % JCCurve25519.p
 
+    # Fixed-base scalar multiplication: s * G with a precomputed table of
+    # multiples of the Weierstrass generator G (which is u = 9 in Montgomery
+    # form). The scalar is made odd (adding r does not change s * G) and
+    # recoded into odd signed digits of w bits, s = sum d_i 2^(w i) with
+    # d_i in {+-1, +-3, ..., +-(2^w - 1)} (Joye and Tunstall). The table
+    # holds j 2^(w i) G for odd j, so s * G takes one point addition per
+    # digit, the same for all scalars, and no doublings. It is built on
+    # first use and never changed afterwards, so all threads share it
+    # without locking
+    BASE_BITS = 6
+    BASE_WINDOWS = 254 // BASE_BITS + 1
+    base_table = None
+    base_table_lock = threading.Lock()
+
+    @staticmethod
+    def jacobian_add_affine(P, Q):
+        """ Jacobian point P plus affine point Q on the Weierstrass curve
+            (None is the point at infinity)
+        """
+        p = JCCurve25519.p
+
+        if Q is None:
+            return P
+        if P is None:
+            return (Q[0], Q[1], 1)
+
+        X1, Y1, Z1 = P
+        x2, y2 = Q
+
+        Z1Z1 = Z1 * Z1 % p
+        U2 = x2 * Z1Z1 % p
+        S2 = y2 * Z1 * Z1Z1 % p
+        H = (U2 - X1) % p
+        R = 2 * (S2 - Y1) % p
+
+        if H == 0:
+            # P = Q or P = -Q, rare: use the affine formulas
+            R = JCCurve25519.weierstrass_add(JCCurve25519.jacobian_to_affine(P), Q)
+            return None if R is None else (R[0], R[1], 1)
+
+        HH = H * H % p
+        I = 4 * HH % p
+        J = H * I % p
+        V = X1 * I % p
+        X3 = (R * R - J - 2 * V) % p
+        Y3 = (R * (V - X3) - 2 * Y1 * J) % p
+        Z3 = ((Z1 + H) ** 2 - Z1Z1 - HH) % p
+
+        return (X3, Y3, Z3)
+
+    @staticmethod
+    def jacobian_to_affine(P):
+        if P is None:
+            return None
+
+        p = JCCurve25519.p
+        X, Y, Z = P
+        zi = pow(Z, p - 2, p)
+        zi2 = zi * zi % p
+
+        return (X * zi2 % p, Y * zi2 * zi % p)
+
+    @staticmethod
+    def base_table_get():
+        """ Returns the fixed-base table, building it on first use:
+            table[i][(j - 1) / 2] = j 2^(w i) G (affine) for odd j < 2^w
+        """
+        table = JCCurve25519.base_table
+
+        if table is not None:
+            return table
+
+        with JCCurve25519.base_table_lock:
+            if JCCurve25519.base_table is None:
+                rows = []
+                B = (JCCurve25519.Gx_w, JCCurve25519.Gy_w)
+
+                for i in range(JCCurve25519.BASE_WINDOWS):
+                    B2 = JCCurve25519.weierstrass_add(B, B)
+                    row = [B]
+                    for j in range((1 << (JCCurve25519.BASE_BITS - 1)) - 1):
+                        row.append(JCCurve25519.weierstrass_add(row[-1], B2))
+                    rows.append(tuple(row))
+
+                    # 2^(w (i+1)) G = (2^w - 1) 2^(w i) G + 2^(w i) G
+                    B = JCCurve25519.weierstrass_add(row[-1], B)
+
+                JCCurve25519.base_table = tuple(rows)
+
+            return JCCurve25519.base_table
+
+    @staticmethod
+    def smul_base_weierstrass(s):
+        """ Affine Weierstrass point s * G (None if it is the point at
+            infinity), using the fixed-base table
+        """
+        table = JCCurve25519.base_table_get()
+        p = JCCurve25519.p
+        r = JCCurve25519.r
+
+        # Odd representative of s mod r, below 2^254
+        s = s % r
+        if s == 0:
+            return None
+        s = s + r * (1 - (s & 1))
+
+        w = JCCurve25519.BASE_BITS
+        mask = (1 << (w + 1)) - 1
+
+        P = None
+        for i in range(JCCurve25519.BASE_WINDOWS):
+            # Odd digit, the last one takes what is left (positive, odd)
+            if i < JCCurve25519.BASE_WINDOWS - 1:
+                d = (s & mask) - (1 << w)
+            else:
+                d = s
+            s = (s - d) >> w
+
+            neg = int(d < 0)
+            x, y = table[i][(d * (1 - 2 * neg) - 1) >> 1]
+            P = JCCurve25519.jacobian_add_affine(P, (x, y + neg * (p - 2 * y)))
+
+        return JCCurve25519.jacobian_to_affine(P)
+
+    @staticmethod
+    def smul_base(s):
+        """ Same as smul(s, 9), e.g. the public key of the private key s,
+            but several times faster. Like smul, not constant time
+        """
+        P = JCCurve25519.smul_base_weierstrass(s)
+
+        if P is None:
+            return 0
+
+        return JCCurve25519.weierstrass_to_montgomery(P[0])
+
+    # Ed25519 support: the card only outputs X coordinates, so the host
+    # recovers Y and maps the point to Edwards form. The card checks the
+    # result (see completePoint in Curve25519Test)
+
+    @staticmethod
+    def weierstrass_add(P, Q):
+        """ Affine addition on the Weierstrass curve (None is the point at
+            infinity)
+        """
+        p = JCCurve25519.p
+
+        if P is None:
+            return Q
+        if Q is None:
+            return P
+
+        (x1, y1), (x2, y2) = P, Q
+
+        if x1 == x2:
+            if (y1 + y2) % p == 0:
+                return None
+            l = (3 * x1 * x1 + JCCurve25519.a_w) * pow(2 * y1, p - 2, p) % p
+        else:
+            l = (y2 - y1) * pow(x2 - x1, p - 2, p) % p
+
+        x3 = (l * l - x1 - x2) % p
+        return (x3, (l * (x1 - x3) - y1) % p)
+
+    @staticmethod
+    def complete_point(xW, x1W):
+        """ Returns Y of the point P with X coordinate xW for which X(P + G)
+            is x1W, i.e. fixes the sign lost by the X-only card output
+        """
+        p = JCCurve25519.p
+        y2 = (pow(xW, 3, p) + JCCurve25519.a_w * xW + JCCurve25519.b_w) % p
+        y = JCCurve25519.modular_sqrt(y2, p)
+
+        for yW in (y, (p - y) % p):
+            Q = JCCurve25519.weierstrass_add((xW, yW), (JCCurve25519.Gx_w, JCCurve25519.Gy_w))
+            if Q is not None and Q[0] == x1W:
+                return yW
+
+        raise Exception("Point cannot be completed")
+
+    @staticmethod
+    def weierstrass_to_edwards(xW, yW):
+        p = JCCurve25519.p
+        u = JCCurve25519.weierstrass_to_montgomery(xW)
+        xE = JCCurve25519.c_e * u * pow(yW, p - 2, p) % p
+        yE = (u - 1) * pow(u + 1, p - 2, p) % p
+        return xE, yE
+
+    @staticmethod
+    def edwards_encode(xE, yE):
+        return JCCurve25519.pack_le(yE | ((xE & 1) << 255))
+
+    @staticmethod
+    def edwards_decode(s):
+        p = JCCurve25519.p
+        n = JCCurve25519.unpack_le(s)
+        yE = n & ((1 << 255) - 1)
+
+        if yE >= p:
+            return None
+
+        x2 = (yE * yE - 1) * pow(JCCurve25519.d_e * yE * yE + 1, p - 2, p) % p
+        xE = JCCurve25519.modular_sqrt(x2, p)
+
+        if x2 != 0 and xE == 0:
+            return None
+        if (xE & 1) != (n >> 255):
+            if xE == 0:
+                return None
+            xE = p - xE
+
+        return xE, yE
+
+    @staticmethod
+    def edwards_add(P, Q):
+        p = JCCurve25519.p
+        (x1, y1), (x2, y2) = P, Q
+        t = JCCurve25519.d_e * x1 * x2 * y1 * y2 % p
+        x3 = (x1 * y2 + x2 * y1) * pow(1 + t, p - 2, p) % p
+        y3 = (y1 * y2 + x1 * x2) * pow(1 - t, p - 2, p) % p
+        return x3, y3
+
+    @staticmethod
+    def edwards_smul(s, P):
+        Q = (0, 1)
+        while s > 0:
+            if s & 1:
+                Q = JCCurve25519.edwards_add(Q, P)
+            P = JCCurve25519.edwards_add(P, P)
+            s >>= 1
+        return Q
+
+    @staticmethod
+    def ed25519_public_key(seed):
+        """ Reference Ed25519 public key of a 32 byte seed (RFC 8032)
+        """
+        h = hashlib.sha512(bytes(seed)).digest()
+        a = JCCurve25519.unpack_le(h[0:32])
+        a &= ~7
+        a &= ~(128 << 8 * 31)
+        a |= 64 << 8 * 31
+        B = JCCurve25519.weierstrass_to_edwards(JCCurve25519.Gx_w, JCCurve25519.Gy_w)
+        return JCCurve25519.edwards_encode(*JCCurve25519.edwards_smul(a, B))
+
+    @staticmethod
+    def ed25519_verify(pk, message, signature):
+        """ Reference Ed25519 verification (RFC 8032, cofactorless)
+        """
+        if len(signature) != 64:
+            return False
+
+        A = JCCurve25519.edwards_decode(pk)
+        R = JCCurve25519.edwards_decode(signature[0:32])
+        S = JCCurve25519.unpack_le(signature[32:64])
+
+        if A is None or R is None or S >= JCCurve25519.r:
+            return False
+
+        h = hashlib.sha512(bytes(signature[0:32]) + bytes(pk) + bytes(message)).digest()
+        k = sum(h[i] << (8 * i) for i in range(64)) % JCCurve25519.r
+
+        B = JCCurve25519.weierstrass_to_edwards(JCCurve25519.Gx_w, JCCurve25519.Gy_w)
+        return JCCurve25519.edwards_smul(S, B) == JCCurve25519.edwards_add(R, JCCurve25519.edwards_smul(k, A))
+
+    @staticmethod
+    def card_to_montgomery(xW):
+        """ Converts a card output (X coordinate in Weierstrass form of
+            (scalar >> 3) * point) into the Curve25519 standard value
+        """
+        xM = JCCurve25519.weierstrass_to_montgomery(xW)
+
+        # Multiply by 8 (three doublings)
+        return JCCurve25519.smul(8, xM)
+
+    # Logical channels with their own key on card (basic channel 0 to 3)
+    MAX_CHANNELS = 4
+
+    # Ed25519 nonces kept on card per logical channel
+    NONCE_POOL_SIZE = 4
+
     def __init__(self):
         self.connected = False
 
+        # Logical channel used for all APDUs of this instance
+        self.channel = 0
+
+        # Serializes APDUs when one card is shared between threads
+        # (and between the logical channels opened on it)
+        self.lock = threading.RLock()
+
     def isConnected(self):
         return self.connected
 
     def transmitReceive(self, apdu):
-        response, sw1, sw2 = self.c.transmit(apdu)
+        # Logical channel number goes into the CLA byte
+        apdu = [apdu[0] | self.channel] + apdu[1:]
 
-        if sw1 == 0x61:
-            GET_RESPONSE = [0x00, 0xC0, 0x00, 0x00]
-            apdu = GET_RESPONSE + [sw2]
-            response, sw1, sw2 = self.c.transmit(apdu)
-        if sw1 == 0x6c:
-            apdu[4] = sw2
+        with self.lock:
             response, sw1, sw2 = self.c.transmit(apdu)
 
+            if sw1 == 0x61:
+                GET_RESPONSE = [self.channel, 0xC0, 0x00, 0x00]
+                apdu = GET_RESPONSE + [sw2]
+                response, sw1, sw2 = self.c.transmit(apdu)
+            if sw1 == 0x6c:
+                apdu[4] = sw2
+                response, sw1, sw2 = self.c.transmit(apdu)
+
         return response, sw1, sw2
 
-    def connect(self):
+    def connect(self, reader=None):
+        """ Connects to the first reader with a card (or the first one whose
+            name contains reader) and selects the applet
+        """
         print("== Available readers:")
 
         self.connected = False
 
+        if smartcard is None:
+            raise Exception("pyscard is not installed")
+
         rl = smartcard.System.readers()
         i = 0
         for r in rl:
             print(str(i) + ") " + r.name)
             i = i + 1
 
+        if reader is not None:
+            rl = [r for r in rl if reader in r.name]
+
         if len(rl) == 0:
             raise Exception("No readers available")
 
@@ -305,6 +622,94 @@ class JCCurve25519:
         if not usable_card_found:
             raise Exception("No reader with card was found")
 
+        self.select()
+
+    def connectSimulator(self, card=None):
+        """ Connects to a simulated card (see jc_simulator.py) instead of a
+            reader and selects the applet
+        """
+        from jc_simulator import SimulatedCard
+
+        self.connected = False
+
+        self.c = card if card is not None else SimulatedCard()
+        self.c.connect()
+
+        self.select()
+
+    def reconnect(self):
+        """ Re-establishes the connection after the card was reset or
+            removed and selects the applet again. Keys loaded without the
+            volatile option are still usable afterwards
+        """
+        with self.lock:
+            self.connected = False
+
+            try:
+                self.c.disconnect()
+            except Exception:
+                pass
+
+            self.c.connect()
+            self.select()
+
+    def openChannel(self, channel=None):
+        """ Opens logical channel channel (None: the next free one, chosen by
+            the card) on the same card and selects the applet on it. The
+            returned instance has its own private key on card; its APDUs are
+            interleaved with the ones of this instance
+        """
+        if self.connected == False:
+            raise Exception("Not connected")
+
+        if channel is not None and not 0 < channel < JCCurve25519.MAX_CHANNELS:
+            raise Exception("Channel " + str(channel) + " not supported")
+
+        # MANAGE CHANNEL (open), P2 is the channel to open (0: chosen by the card)
+        OPEN = [0x00, 0x70, 0x00, channel if channel is not None else 0x00, 0x01]
+
+        with self.lock:
+            response, sw1, sw2 = self.transmitReceive(OPEN)
+
+            if sw1 != 0x90 or sw2 != 0x00 or len(response) > 1 or (channel is None and len(response) != 1):
+                raise Exception("Opening logical channel failed")
+
+            curve = JCCurve25519()
+            curve.c = self.c
+            curve.lock = self.lock
+
+            # With P2 set, the card does not have to return the channel
+            curve.channel = response[0] if len(response) == 1 else channel
+
+            if channel is not None and curve.channel != channel:
+                curve.closeChannel()
+                raise Exception("Card opened channel " + str(curve.channel) + " instead of " + str(channel))
+
+            if curve.channel >= JCCurve25519.MAX_CHANNELS:
+                curve.closeChannel()
+                raise Exception("No logical channel left")
+
+            curve.select()
+
+        return curve
+
+    def closeChannel(self):
+        """ Closes the logical channel of this instance (not the basic one)
+        """
+        if self.channel == 0:
+            raise Exception("Basic channel cannot be closed")
+
+        # MANAGE CHANNEL (close)
+        CLOSE = [0x00, 0x70, 0x80, self.channel]
+
+        response, sw1, sw2 = self.transmitReceive(CLOSE)
+
+        self.connected = False
+
+        if sw1 != 0x90 or sw2 != 0x00:
+            raise Exception("Closing logical channel failed")
+
+    def select(self):
         # select app
         # SELECT = [0x00, 0xA4, 0x04, 0x00, 0x08, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08]
         SELECT = [0x00, 0xA4, 0x04, 0x00, 0x08, 0xc1, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8]
@@ -349,15 +754,14 @@ class JCCurve25519:
 
         # convert to Curve25519 standards
         sk = skW << 3
-        pk = JCCurve25519.weierstrass_to_montgomery(pkW)
-
-        # Multiply PK by 8 (three doublings)
-        pk = JCCurve25519.smul(8, pk)
+        pk = JCCurve25519.card_to_montgomery(pkW)
 
         return sk, pk
 
-    def setPrivateKey(self, sk):
+    def setPrivateKey(self, sk, persistent=True):
         """ Sets a private key and returns the public key
+            The key stays usable on card across deselect and card reset
+            (see keyStatus); with persistent cleared, only until deselect
             This method handles the conversion to Montgomery coordinates etc.
         """
         if self.connected == False:
@@ -367,7 +771,7 @@ class JCCurve25519:
         sk = JCCurve25519.pack_be(sk)
 
         # Generate key APDU
-        SETKEY = [0x00, 0x02, 0x0, 0x00, 0x20] + sk
+        SETKEY = [0x00, 0x02, 0x00 if persistent else 0x02, 0x00, 0x20] + sk
 
         b = timer()
         response, sw1, sw2 = self.transmitReceive(SETKEY)
@@ -385,10 +789,7 @@ class JCCurve25519:
         pkW = JCCurve25519.unpack_be(response)
 
         # convert to Curve25519 standards
-        pk = JCCurve25519.weierstrass_to_montgomery(pkW)
-
-        # Multiply PK by 8 (three doublings)
-        pk = JCCurve25519.smul(8, pk)
+        pk = JCCurve25519.card_to_montgomery(pkW)
 
         return pk
 
@@ -423,13 +824,697 @@ class JCCurve25519:
         sharedSecretW = JCCurve25519.unpack_be(response)
 
         # convert to Curve25519 standards
-        sharedSecret = JCCurve25519.weierstrass_to_montgomery(sharedSecretW)
-
-        # Multiply secret by 8 (three doublings)
-        sharedSecret = JCCurve25519.smul(8, sharedSecret)
+        sharedSecret = JCCurve25519.card_to_montgomery(sharedSecretW)
 
         return sharedSecret
 
+    def precomputeEphemeral(self, count=0):
+        """ Fills the on-card pool of ephemeral key pairs, generating at
+            most count key pairs (0 fills the whole pool). Meant to be run
+            while the card is otherwise idle, returns the number of key
+            pairs ready to be taken
+        """
+        if self.connected == False:
+            raise Exception("Not connected")
+
+        # count is sent as P1
+        if not 0 <= count <= 255:
+            raise Exception("Count " + str(count) + " out of range (0 to 255)")
+
+        # Precompute APDU
+        PRECOMPUTE = [0x00, 0x04, count, 0x00, 0x00]
+
+        b = timer()
+        response, sw1, sw2 = self.transmitReceive(PRECOMPUTE)
+        e = timer()
+        print("Execution time: " + str((e - b) * 1000) + ' ms')
+
+        if sw1 != 0x90 or sw2 != 0x00:
+            raise Exception("Card error")
+
+        if len(response) != 1:
+            raise Exception("Response is " + str(len(response)) + " byte")
+
+        return response[0]
+
+    def takeEphemeral(self):
+        """ Takes the next precomputed ephemeral key pair from the card
+            pool, makes it the current private key and returns its public
+            key. No scalar multiplication is done on card
+            This method handles the conversion to Montgomery coordinates etc.
+        """
+        if self.connected == False:
+            raise Exception("Not connected")
+
+        # Take key APDU
+        TAKE = [0x00, 0x05, 0x0, 0x00, 0x00]
+
+        b = timer()
+        response, sw1, sw2 = self.transmitReceive(TAKE)
+        e = timer()
+        print("Execution time: " + str((e - b) * 1000) + ' ms')
+
+        if sw1 == 0x69 and sw2 == 0x85:
+            raise Exception("Ephemeral key pool is empty")
+
+        if sw1 != 0x90 or sw2 != 0x00:
+            raise Exception("Card error")
+
+        if len(response) != 32:
+            raise Exception("Response is " + str(len(response)) + " byte")
+
+        # Unpack and convert internally
+        pkW = JCCurve25519.unpack_be(response)
+
+        return JCCurve25519.card_to_montgomery(pkW)
+
+    def keyStatus(self):
+        """ Cheap check of the on-card key state without any ECC operation.
+            Returns a dict with the flags 'valid', 'persistent' and
+            'agreementReady', the number of ready ephemeral key pairs
+            'poolReady' and the public key 'pk' (None if no valid key)
+        """
+        if self.connected == False:
+            raise Exception("Not connected")
+
+        # Key status APDU
+        STATUS = [0x00, 0x06, 0x0, 0x00, 0x00]
+
+        response, sw1, sw2 = self.transmitReceive(STATUS)
+
+        if sw1 != 0x90 or sw2 != 0x00:
+            raise Exception("Card error")
+
+        if len(response) != 34:
+            raise Exception("Response is " + str(len(response)) + " byte")
+
+        status = {
+            'valid': (response[0] & 0x01) != 0,
+            'persistent': (response[0] & 0x02) != 0,
+            'agreementReady': (response[0] & 0x04) != 0,
+            'poolReady': response[1],
+            'pk': None
+        }
+
+        if status['valid']:
+            status['pk'] = JCCurve25519.card_to_montgomery(JCCurve25519.unpack_be(response[2:34]))
+
+        return status
+
+
+    def completeOnCard(self, ins, p1, response):
+        """ Completes the point from a card response X(P) || X(P + G) and
+            sends Y, Edwards x and Edwards y back to the card for checking
+        """
+        xW = JCCurve25519.unpack_be(response[0:32])
+        x1W = JCCurve25519.unpack_be(response[32:64])
+
+        yW = JCCurve25519.complete_point(xW, x1W)
+        xE, yE = JCCurve25519.weierstrass_to_edwards(xW, yW)
+
+        COMPLETE = [0x00, ins, p1, 0x00, 0x60] + JCCurve25519.pack_be(yW) + JCCurve25519.pack_be(xE) + JCCurve25519.pack_be(yE)
+
+        response, sw1, sw2 = self.transmitReceive(COMPLETE)
+
+        if sw1 != 0x90 or sw2 != 0x00:
+            raise Exception("Card rejected point")
+
+        return response
+
+    def setSigningKey(self, seed):
+        """ Sets an Ed25519 private key (32 byte seed as in RFC 8032) and
+            returns the encoded public key
+        """
+        if self.connected == False:
+            raise Exception("Not connected")
+
+        # Load signing key APDU
+        LOADSIGN = [0x00, 0x07, 0x0, 0x00, 0x20] + list(seed)
+
+        b = timer()
+        response, sw1, sw2 = self.transmitReceive(LOADSIGN)
+        e = timer()
+        print("Execution time: " + str((e - b) * 1000) + ' ms')
+
+        if sw1 != 0x90 or sw2 != 0x00:
+            raise Exception("Card error")
+
+        if len(response) != 64:
+            raise Exception("Response is " + str(len(response)) + " byte")
+
+        pk = self.completeOnCard(0x08, 0x00, response)
+
+        if len(pk) != 32:
+            raise Exception("Response is " + str(len(pk)) + " byte")
+
+        return pk
+
+    def precomputeNonces(self, count=0):
+        """ Fills the on-card pool of Ed25519 nonces, computing at most count
+            nonces (0 fills the whole pool). Meant to be run while the card
+            is otherwise idle, returns the number of nonces ready
+        """
+        if self.connected == False:
+            raise Exception("Not connected")
+
+        if not 0 <= count <= 255:
+            raise Exception("Count " + str(count) + " out of range (0 to 255)")
+
+        # Precompute nonce APDU
+        PRECOMPUTE = [0x00, 0x09, 0x0, 0x00, 0x00]
+
+        ready = 0
+        i = 0
+        while count == 0 or i < count:
+            b = timer()
+            response, sw1, sw2 = self.transmitReceive(PRECOMPUTE)
+            e = timer()
+            print("Execution time: " + str((e - b) * 1000) + ' ms')
+
+            # Pool is full: the card only refuses when every slot of the
+            # channel holds a committed nonce
+            if sw1 == 0x6A and sw2 == 0x84:
+                ready = JCCurve25519.NONCE_POOL_SIZE
+                break
+
+            if sw1 != 0x90 or sw2 != 0x00:
+                raise Exception("Card error")
+
+            if len(response) != 65:
+                raise Exception("Response is " + str(len(response)) + " byte")
+
+            ready = self.completeOnCard(0x0A, response[0], response[1:65])[0]
+            i = i + 1
+
+        return ready
+
+    def sign(self, message):
+        """ Signs message (at most 255 bytes) with the Ed25519 key on card,
+            using the next precomputed nonce. Returns R || S (64 bytes)
+        """
+        if self.connected == False:
+            raise Exception("Not connected")
+
+        if len(message) > 255:
+            raise Exception("Message too long")
+
+        # Sign APDU
+        SIGN = [0x00, 0x0B, 0x0, 0x00, len(message)] + list(message)
+
+        b = timer()
+        response, sw1, sw2 = self.transmitReceive(SIGN)
+        e = timer()
+        print("Execution time: " + str((e - b) * 1000) + ' ms')
+
+        if sw1 == 0x69 and sw2 == 0x85:
+            raise Exception("No signing key or no precomputed nonce")
+
+        if sw1 != 0x90 or sw2 != 0x00:
+            raise Exception("Card error")
+
+        if len(response) != 64:
+            raise Exception("Response is " + str(len(response)) + " byte")
+
+        return response
+
+    # Phases of LOAD_PRIVATE_KEY and COMPUTE_SHARED_SECRET the diagnostics
+    # build can skip (Diagnostics.PHASE_* in the applet)
+    PHASE_INIT_KEYS = 0x01
+    PHASE_SET_S = 0x02
+    PHASE_AGREEMENT_INIT = 0x04
+    PHASE_GENERATE_SECRET = 0x08
+    PHASE_KEY_STATE = 0x10
+
+    # Error codes counted by the diagnostics build (CryptoException reasons)
+    ERROR_NAMES = {
+        0x0001: "ILLEGAL_VALUE",
+        0x0002: "UNINITIALIZED_KEY",
+        0x0003: "NO_SUCH_ALGORITHM",
+        0x0004: "INVALID_INIT",
+        0x0005: "ILLEGAL_USE",
+        0xEEEE: "other exception"
+    }
+
+    def diagnostics(self, clear=False, skip=None):
+        """ Reads the profiling counters of the diagnostics build of the
+            applet (curve25519_diag.cap), clears them afterwards if clear is
+            set. With skip (instead of clear), the PHASE_* bits of the
+            phases to skip are set first, 0 runs all phases again. Returns
+            a dict with the invocations per INS 'commands' (other INS as
+            'other'), the error codes sent back 'errors' (by code, 'other',
+            and 'statusWord' for commands rejected with an error status
+            word), the EEPROM writes 'keyWrites' (key parameters) and
+            'arrayWrites' (persistent arrays and fields) and the skipped
+            phases 'skipped'
+        """
+        if self.connected == False:
+            raise Exception("Not connected")
+
+        # Diagnostics APDU
+        p1 = 0x02 if skip is not None else (0x01 if clear else 0x00)
+        DIAGNOSTICS = [0x00, 0x0C, p1, skip if skip is not None else 0x00, 0x00]
+
+        response, sw1, sw2 = self.transmitReceive(DIAGNOSTICS)
+
+        if sw1 == 0x6D and sw2 == 0x00:
+            raise Exception("Applet is not a diagnostics build")
+
+        if sw1 != 0x90 or sw2 != 0x00:
+            raise Exception("Card error")
+
+        if len(response) != 53:
+            raise Exception("Response is " + str(len(response)) + " byte")
+
+        counters = [(response[2 * i] << 8) | response[2 * i + 1] for i in range(26)]
+
+        errors = dict((code, counters[16 + (code if code < 0x10 else 6)]) for code in JCCurve25519.ERROR_NAMES)
+        errors['other'] = counters[16]
+        errors['statusWord'] = counters[23]
+
+        commands = dict((ins, counters[ins]) for ins in range(1, 16))
+        commands['other'] = counters[0]
+
+        return {
+            'commands': commands,
+            'errors': errors,
+            'keyWrites': counters[24],
+            'arrayWrites': counters[25],
+            'skipped': response[52]
+        }
+
+    # Operations of modArith (Diagnostics.ARITH_* in the applet)
+    ARITH_MUL = 0x00
+    ARITH_ADD = 0x01
+    ARITH_SUB = 0x02
+    ARITH_REDUCE = 0x03
+
+    def modArith(self, op, a, b=0, modR=False):
+        """ Runs one operation of the applet's ModArith in the diagnostics
+            build: a * b, a + b or a - b mod p (mod r with modR), or with
+            ARITH_REDUCE a (at most 512 bits) mod p or r. a and b must be
+            smaller than the modulus. Returns the result as an integer
+        """
+        if self.connected == False:
+            raise Exception("Not connected")
+
+        if op == JCCurve25519.ARITH_REDUCE:
+            data = JCCurve25519.pack_be(a >> 256) + JCCurve25519.pack_be(a & ((1 << 256) - 1))
+        else:
+            data = JCCurve25519.pack_be(a) + JCCurve25519.pack_be(b)
+
+        # Diagnostics APDU, P1 = 0x03 (arithmetic)
+        ARITHMETIC = [0x00, 0x0C, 0x03, op | (0x80 if modR else 0x00), 0x40] + data
+
+        response, sw1, sw2 = self.transmitReceive(ARITHMETIC)
+
+        if sw1 == 0x6D and sw2 == 0x00:
+            raise Exception("Applet is not a diagnostics build")
+
+        if sw1 != 0x90 or sw2 != 0x00:
+            raise Exception("Card error")
+
+        if len(response) != 32:
+            raise Exception("Response is " + str(len(response)) + " byte")
+
+        return JCCurve25519.unpack_be(response)
+
+
+class JCCurve25519SessionManager:
+    """ Keeps card connections open and shares them between worker threads.
+        Together with persistent on-card keys, a host process that starts up
+        or reconnects only checks the key status instead of reloading the
+        private key
+    """
+
+    def __init__(self):
+        # Taken before the lock of a card, never while holding one
+        self.lock = threading.RLock()
+        self.sessions = {}
+
+        # Per session: (digest of the private key, public key) of the last
+        # resumed key. The digest is keyed with a random value, so no private
+        # key is kept in host memory
+        self.publicKeys = {}
+        self.digestKey = os.urandom(32)
+
+    def session(self, reader=None, channel=0):
+        """ Returns the shared connection for reader (None for the first
+            reader with a card), connecting on first use. Sessions with
+            channel > 0 use their own logical channel (and on-card key),
+            opened on first use
+        """
+        if channel >= JCCurve25519.MAX_CHANNELS:
+            raise Exception("Channel " + str(channel) + " not supported")
+
+        with self.lock:
+            curve = self.sessions.get((reader, channel))
+
+            if curve is None or not curve.isConnected():
+                if channel == 0:
+                    curve = JCCurve25519()
+                    curve.connect(reader)
+                else:
+                    curve = self.session(reader).openChannel(channel)
+
+                # Keyed by the channel actually opened on card
+                self.sessions[(reader, curve.channel)] = curve
+
+            return curve
+
+    def resume(self, sk, reader=None, channel=0):
+        """ Returns the shared connection for reader with private key sk
+            usable on card. The key is only loaded (persistently) if the
+            card does not report it as still loaded, so a resumed session
+            costs one status APDU instead of an ECC operation
+        """
+        curve = self.session(reader, channel)
+
+        digest = hmac.new(self.digestKey, bytes(JCCurve25519.pack_le(sk)), hashlib.sha256).digest()
+
+        with self.lock:
+            cached = self.publicKeys.get((reader, curve.channel))
+
+            if cached is not None and hmac.compare_digest(cached[0], digest):
+                pk = cached[1]
+            else:
+                # The card clamps sk, so its public key is the one of clamp(sk)
+                pk = JCCurve25519.smul_base(JCCurve25519.clamp(sk))
+                self.publicKeys[(reader, curve.channel)] = (digest, pk)
+
+        for attempt in range(2):
+            # Status check and key load run as one unit
+            with curve.lock:
+                try:
+                    status = curve.keyStatus()
+                except Exception:
+                    # Card was reset or reader connection lost
+                    if attempt > 0:
+                        raise
+                    status = None
+
+                if status is not None:
+                    if not status['valid'] or status['pk'] != pk:
+                        curve.setPrivateKey(sk, persistent=True)
+
+                    return curve
+
+            # Outside of the card lock, the manager lock is taken first
+            curve = self.reconnect(reader, channel)
+
+    def reconnect(self, reader=None, channel=0):
+        """ Reconnects to the card in reader after a reset or a lost
+            connection. This closes all logical channels on the card, they
+            are reopened on their next use
+        """
+        with self.lock:
+            for (r, ch), curve in self.sessions.items():
+                if r == reader and ch != 0:
+                    curve.connected = False
+
+            basic = self.sessions.get((reader, 0))
+
+            if basic is not None and basic.isConnected():
+                basic.reconnect()
+
+        return self.session(reader, channel)
+
+    def close(self):
+        with self.lock:
+            # Logical channels first, then the basic channel
+            for (reader, channel), curve in sorted(self.sessions.items(), key=lambda s: -s[0][1]):
+                try:
+                    if channel != 0:
+                        curve.closeChannel()
+                    else:
+                        curve.c.disconnect()
+                except Exception:
+                    pass
+                curve.connected = False
+
+            self.sessions = {}
+            self.publicKeys = {}
+
+
+class JCCurve25519Pipeline:
+    """ Streaming shared secret computation with the private key on card for
+        many peer public keys. The conversions to and from Weierstrass form
+        run on worker threads and overlap with the card round trips, so the
+        card does not wait for the host between two agreements
+
+            pipeline = JCCurve25519Pipeline(curve)
+            for sharedSecret in pipeline.run(peerKeys):
+                ...
+            pipeline.printStats()
+
+        Results are returned in the order of the input. At most max_in_flight
+        keys are between input and output at any time, so a slow consumer
+        holds back the input stream instead of buffering results
+    """
+
+    # Stages, in order
+    STAGES = ["input", "convert", "card", "result"]
+
+    class Stopped(Exception):
+        pass
+
+    def __init__(self, curve, workers=2, queue_size=16, max_in_flight=64):
+        self.curve = curve
+        self.workers = workers
+        self.queue_size = queue_size
+        self.max_in_flight = max_in_flight
+        self.stats = None
+
+    def newStats(self):
+        # Per stage: threads, items, and time (seconds) spent working, waiting
+        # for input (starved) and waiting for room in the next queue (blocked)
+        self.stats = {}
+        for name in JCCurve25519Pipeline.STAGES:
+            self.stats[name] = {'threads': 0, 'items': 0, 'busy': 0.0, 'starved': 0.0, 'blocked': 0.0}
+        self.stats_lock = threading.Lock()
+
+    def account(self, stage, items, busy, starved, blocked):
+        with self.stats_lock:
+            st = self.stats[stage]
+            st['items'] += items
+            st['busy'] += busy
+            st['starved'] += starved
+            st['blocked'] += blocked
+
+    def put(self, q, item):
+        while True:
+            if self.stop.is_set():
+                raise JCCurve25519Pipeline.Stopped()
+            try:
+                q.put(item, timeout=0.1)
+                return
+            except queue.Full:
+                pass
+
+    def get(self, q):
+        while True:
+            if self.stop.is_set():
+                raise JCCurve25519Pipeline.Stopped()
+            try:
+                return q.get(timeout=0.1)
+            except queue.Empty:
+                pass
+
+    def fail(self, e):
+        with self.stats_lock:
+            if self.error is None:
+                self.error = e
+        self.stop.set()
+
+    def inputStage(self, pks):
+        try:
+            for i, pk in enumerate(pks):
+                # Backpressure: wait until the output has room
+                b = timer()
+                while not self.window.acquire(timeout=0.1):
+                    if self.stop.is_set():
+                        raise JCCurve25519Pipeline.Stopped()
+                self.put(self.pending, (i, pk))
+                self.account("input", 1, 0.0, 0.0, timer() - b)
+
+            for _ in range(self.workers):
+                self.put(self.pending, None)
+        except JCCurve25519Pipeline.Stopped:
+            pass
+        except Exception as e:
+            self.fail(e)
+
+    def convertStage(self):
+        """ Peer public key to the APDU for the card
+        """
+        try:
+            while True:
+                b = timer()
+                item = self.get(self.pending)
+                m = timer()
+
+                if item is None:
+                    self.put(self.apdus, None)
+                    return
+
+                i, pk = item
+                pkW = JCCurve25519.montgomery_to_weierstrass(pk)
+                apdu = [0x00, 0x03, 0x0, 0x00, 0x40] + JCCurve25519.pack_be(pkW[0]) + JCCurve25519.pack_be(pkW[1])
+
+                e = timer()
+                self.put(self.apdus, (i, apdu))
+                self.account("convert", 1, e - m, m - b, timer() - e)
+        except JCCurve25519Pipeline.Stopped:
+            pass
+        except Exception as e:
+            self.fail(e)
+
+    def cardStage(self):
+        """ Round trips to the card, one at a time
+        """
+        try:
+            done = 0
+            while done < self.workers:
+                b = timer()
+                item = self.get(self.apdus)
+                m = timer()
+
+                if item is None:
+                    done = done + 1
+                    self.account("card", 0, 0.0, m - b, 0.0)
+                    continue
+
+                i, apdu = item
+                response, sw1, sw2 = self.curve.transmitReceive(apdu)
+
+                if sw1 != 0x90 or sw2 != 0x00:
+                    raise Exception("Card error for key " + str(i))
+
+                if len(response) != 32:
+                    raise Exception("Response is " + str(len(response)) + " byte for key " + str(i))
+
+                e = timer()
+                self.put(self.responses, (i, response))
+                self.account("card", 1, e - m, m - b, timer() - e)
+
+            for _ in range(self.workers):
+                self.put(self.responses, None)
+        except JCCurve25519Pipeline.Stopped:
+            pass
+        except Exception as e:
+            self.fail(e)
+
+    def resultStage(self):
+        """ Card response to the Curve25519 shared secret
+        """
+        try:
+            while True:
+                b = timer()
+                item = self.get(self.responses)
+                m = timer()
+
+                if item is None:
+                    self.put(self.results, None)
+                    return
+
+                i, response = item
+                sharedSecret = JCCurve25519.card_to_montgomery(JCCurve25519.unpack_be(response))
+
+                e = timer()
+                self.put(self.results, (i, sharedSecret))
+                self.account("result", 1, e - m, m - b, timer() - e)
+        except JCCurve25519Pipeline.Stopped:
+            pass
+        except Exception as e:
+            self.fail(e)
+
+    def run(self, pks):
+        """ Generator of the shared secrets of the private key on card with
+            each public key of the iterable pks (Curve25519 u coordinates,
+            as for generateSharedSecret), in the same order
+        """
+        if self.curve.isConnected() == False:
+            raise Exception("Not connected")
+
+        self.newStats()
+        self.error = None
+        self.stop = threading.Event()
+        self.window = threading.BoundedSemaphore(self.max_in_flight)
+
+        self.pending = queue.Queue(self.queue_size)
+        self.apdus = queue.Queue(self.queue_size)
+        self.responses = queue.Queue(self.queue_size)
+        self.results = queue.Queue(self.queue_size)
+
+        threads = [threading.Thread(target=self.inputStage, args=(pks,))]
+        threads += [threading.Thread(target=self.convertStage) for _ in range(self.workers)]
+        threads += [threading.Thread(target=self.cardStage)]
+        threads += [threading.Thread(target=self.resultStage) for _ in range(self.workers)]
+
+        self.stats["input"]['threads'] = 1
+        self.stats["convert"]['threads'] = self.workers
+        self.stats["card"]['threads'] = 1
+        self.stats["result"]['threads'] = self.workers
+
+        # Stages start working as soon as their thread is started
+        b = timer()
+
+        for t in threads:
+            t.daemon = True
+            t.start()
+
+        try:
+            # Reorder buffer, holds at most max_in_flight results
+            done = {}
+            following = 0
+            finished = 0
+
+            while finished < self.workers:
+                try:
+                    item = self.get(self.results)
+                except JCCurve25519Pipeline.Stopped:
+                    break
+
+                if item is None:
+                    finished = finished + 1
+                    continue
+
+                done[item[0]] = item[1]
+
+                while following in done:
+                    yield done.pop(following)
+                    following = following + 1
+                    self.window.release()
+        finally:
+            self.stop.set()
+
+            for t in threads:
+                t.join()
+
+            self.stats['wall'] = timer() - b
+
+        if self.error is not None:
+            raise self.error
+
+    def printStats(self):
+        """ Prints the throughput and the time spent per stage. The card
+            never waits for the host as long as its starved time stays
+            close to zero (only the start of the stream)
+        """
+        if self.stats is None:
+            return
+
+        wall = self.stats['wall']
+
+        print(" stage    threads  items   busy (s)  starved (s)  blocked (s)  items/s  capacity (items/s)")
+
+        for name in JCCurve25519Pipeline.STAGES:
+            st = self.stats[name]
+            rate = st['items'] / wall if wall > 0 else 0.0
+            capacity = st['items'] * st['threads'] / st['busy'] if st['busy'] > 0 else 0.0
+            print(" %-8s %7d %6d %10.3f %12.3f %12.3f %8.1f %19.1f" % (name, st['threads'], st['items'], st['busy'], st['starved'], st['blocked'], rate, capacity))
+
+        print(" total time: " + str(wall * 1000) + ' ms')
+
 
 def main():
     # test vector
@@ -445,15 +1530,17 @@ def main():
     skN = JCCurve25519.clamp(skN)
 
     pkTest = JCCurve25519.smul(skN, 9)
+    pkBase = JCCurve25519.smul_base(skN)
 
     print('\n')
     print("== Testing against test vector == ")
     print("pkRef  = " + hex(pkN))
     print("pkTest = " + hex(pkTest))
     print("diff = " + hex(pkTest - pkN))
+    print("diff (fixed-base) = " + hex(pkBase - pkN))
     print('\n')
 
-    if (pkTest - pkN) != 0:
+    if (pkTest - pkN) != 0 or (pkBase - pkN) != 0:
         return
 
     # Operations with Javacard
@@ -465,7 +1552,7 @@ def main():
     sk, pk = curve.generateKeypair()
 
     # Compute reference 
-    pkRef = JCCurve25519.smul(sk, 9)
+    pkRef = JCCurve25519.smul_base(sk)
     diff = pkRef - pk
 
     print("pkRef  = " + hex(pkRef))
@@ -513,6 +1600,79 @@ def main():
     if diff != 0:
         return
 
+    print("== Testing precomputed ephemeral keys")
+
+    skBob = [0x5d, 0xab, 0x08, 0x7e, 0x62, 0x4a, 0x8a, 0x4b, 0x79, 0xe1, 0x7f, 0x8b, 0x83, 0x80, 0x0e, 0xe6, 0x6f, 0x3b,
+             0xb1, 0x29, 0x26, 0x18, 0xb6, 0xfd, 0x1c, 0x2f, 0x8b, 0x27, 0xff, 0x88, 0xe0, 0xeb]
+
+    skBobN = JCCurve25519.clamp(JCCurve25519.unpack_le(skBob))
+
+    ready = curve.precomputeEphemeral()
+    print("ready = " + str(ready))
+
+    pkEph = curve.takeEphemeral()
+    ssGen = curve.generateSharedSecret(pkBobN)
+
+    # Bob's side of the agreement
+    ssRef = JCCurve25519.smul(skBobN, pkEph)
+    diff = ssRef - ssGen
+
+    print("secretRef  = " + hex(ssRef))
+    print("secretTest = " + hex(ssGen))
+    print("diff = " + hex(diff))
+    print('\n')
+
+    if diff != 0:
+        return
+
+    print("== Testing bulk shared secrets")
+
+    pksBulk = [JCCurve25519.smul_base(JCCurve25519.clamp(JCCurve25519.unpack_le(list(range(i, i + 32))))) for i in range(16)]
+
+    curve.setPrivateKey(skN)
+
+    pipeline = JCCurve25519Pipeline(curve)
+    ssBulk = list(pipeline.run(pksBulk))
+    pipeline.printStats()
+
+    errors = sum(1 for pk, ss in zip(pksBulk, ssBulk) if ss != JCCurve25519.smul(skN, pk))
+
+    print("errors = " + str(errors))
+    print('\n')
+
+    if len(ssBulk) != len(pksBulk) or errors != 0:
+        return
+
+    print("== Testing Ed25519 signing")
+
+    # RFC 8032, section 7.1, test 1
+    seed = [0x9d, 0x61, 0xb1, 0x9d, 0xef, 0xfd, 0x5a, 0x60, 0xba, 0x84, 0x4a, 0xf4, 0x92, 0xec, 0x2c, 0xc4, 0x44, 0x49,
+            0xc5, 0x69, 0x7b, 0x32, 0x69, 0x19, 0x70, 0x3b, 0xac, 0x03, 0x1c, 0xae, 0x7f, 0x60]
+
+    pkSign = curve.setSigningKey(seed)
+    pkSignRef = JCCurve25519.ed25519_public_key(seed)
+
+    print("pkRef  = " + toHexString(pkSignRef))
+    print("pkTest = " + toHexString(pkSign))
+    print('\n')
+
+    if list(pkSign) != list(pkSignRef):
+        return
+
+    ready = curve.precomputeNonces()
+    print("ready = " + str(ready))
+
+    message = [0x72]
+    signature = curve.sign(message)
+    valid = JCCurve25519.ed25519_verify(pkSign, message, signature)
+
+    print("signature = " + toHexString(signature))
+    print("valid = " + str(valid))
+    print('\n')
+
+    if not valid:
+        return
+
 
 if __name__ == '__main__':
     main()
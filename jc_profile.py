@@ -0,0 +1,169 @@
+"""
+ Where the card time goes: phase profile of the Curve25519 applet
+
+ Needs the diagnostics build of the applet (curve25519_diag.cap, built
+ with "ant curve-diag"). Each command is timed with all phases run, with
+ one phase skipped at a time and with all phases skipped; the difference
+ of the medians is the time of the phase, what is left with all phases
+ skipped is APDU transfer and copying. Runs of all rows are interleaved,
+ so drift hits all rows alike. The counters of the diagnostics build give
+ the EEPROM writes per command.
+
+    python jc_profile.py                    simulated card
+    python jc_profile.py -n 50 --card       real card in the first reader
+
+ Results on card are wrong while a phase is skipped; the card runs all
+ phases again when the profile is done (and after a card reset). Each
+ change of the skipped phases invalidates the keys on card, so commands
+ that need a key load one (untimed) after each change. Times on
+ the simulated card are the ones of its Python model, use --card for the
+ times of a real card.
+
+ =======================================================================
+
+ This is free and unencumbered software released into the public domain.
+
+ Anyone is free to copy, modify, publish, use, compile, sell, or
+ distribute this software, either in source code form or as a compiled
+ binary, for any purpose, commercial or non-commercial, and by any
+ means.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ OTHER DEALINGS IN THE SOFTWARE.
+"""
+
+import argparse
+import os
+import sys
+import time
+
+from jc_curve25519 import JCCurve25519
+from jc_simulator import SimulatedApplet, SimulatedCard
+
+PHASE_NAMES = [
+    (JCCurve25519.PHASE_INIT_KEYS, "initKeys"),
+    (JCCurve25519.PHASE_SET_S, "setS"),
+    (JCCurve25519.PHASE_AGREEMENT_INIT, "keyAgreement.init"),
+    (JCCurve25519.PHASE_GENERATE_SECRET, "generateSecret"),
+    (JCCurve25519.PHASE_KEY_STATE, "key state (EEPROM)"),
+]
+
+ALL_PHASES = 0x1F
+
+
+def load_apdu():
+    return [0x00, 0x02, 0x00, 0x00, 0x20] + list(os.urandom(32))
+
+
+def compute_apdu():
+    # Fixed peer point: the Weierstrass form of u = 9
+    return [0x00, 0x03, 0x00, 0x00, 0x40] + JCCurve25519.pack_be(JCCurve25519.Gx_w) + JCCurve25519.pack_be(JCCurve25519.Gy_w)
+
+
+def prepare_compute(curve):
+    # LOAD_PRIVATE_KEY leaves keyAgreement initialized, so COMPUTE_SHARED_SECRET
+    # only runs generateSecret
+    curve.setPrivateKey(JCCurve25519.clamp(JCCurve25519.unpack_le(os.urandom(32))))
+
+
+# Commands: (name, APDU factory, setup run after each change of the skipped
+# phases, phases)
+COMMANDS = [
+    ("LOAD_PRIVATE_KEY", load_apdu, None, [p for p, _ in PHASE_NAMES]),
+    ("COMPUTE_SHARED_SECRET", compute_apdu, prepare_compute, [JCCurve25519.PHASE_GENERATE_SECRET]),
+]
+
+
+def transmit(curve, apdu):
+    """ Sends apdu, returns the time in ms
+    """
+    b = time.perf_counter()
+    response, sw1, sw2 = curve.transmitReceive(apdu)
+    e = time.perf_counter()
+
+    if sw1 != 0x90 or sw2 != 0x00 or len(response) != 32:
+        raise Exception("Card error")
+
+    return (e - b) * 1000
+
+
+def median(s):
+    s = sorted(s)
+    return s[len(s) // 2]
+
+
+def profile(curve, name, make_apdu, setup, phases, n):
+    curve.diagnostics(skip=0)
+
+    if setup is not None:
+        setup(curve)
+
+    # Warm up, and count the EEPROM writes of one run with all phases
+    transmit(curve, make_apdu())
+    curve.diagnostics(clear=True)
+    transmit(curve, make_apdu())
+    counters = curve.diagnostics()
+
+    masks = [0] + phases + [ALL_PHASES]
+    times = dict((mask, []) for mask in masks)
+
+    for i in range(n):
+        for mask in masks:
+            curve.diagnostics(skip=mask)
+
+            if setup is not None:
+                setup(curve)
+
+            times[mask].append(transmit(curve, make_apdu()))
+
+    curve.diagnostics(skip=0)
+
+    full = median(times[0])
+    rest = median(times[ALL_PHASES])
+
+    print("== " + name + ": median of " + str(n) + " runs per row")
+    print("  phase skipped             time (ms)   phase (ms)   share")
+    print("  %-24s %10.3f" % ("(none)", full))
+
+    for mask in phases:
+        t = median(times[mask])
+        print("  %-24s %10.3f   %10.3f  %5.1f%%" % (dict(PHASE_NAMES)[mask], t, full - t, 100.0 * (full - t) / full))
+
+    print("  %-24s %10.3f   %10s  %5.1f%%  APDU transfer and copying" % ("(all)", rest, "", 100.0 * rest / full))
+    print("  EEPROM writes per run: %d key parameters, %d persistent arrays and fields" % (counters['keyWrites'], counters['arrayWrites']))
+    print('\n')
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Phase profile of the diagnostics build of the applet")
+    parser.add_argument("-n", "--runs", type=int, default=20, help="runs per phase")
+    parser.add_argument("--card", nargs="?", const="", default=None, metavar="READER",
+                        help="use a real card (in the first reader, or the one whose name contains READER)")
+    args = parser.parse_args()
+
+    curve = JCCurve25519()
+
+    if args.card is None:
+        curve.connectSimulator(SimulatedCard(SimulatedApplet(diagnostics=True)))
+    else:
+        curve.connect(args.card if args.card != "" else None)
+
+    try:
+        curve.diagnostics(clear=True)
+    except Exception as e:
+        print(str(e) + ", install curve25519_diag.cap (ant curve-diag)")
+        return 1
+
+    for name, make_apdu, setup, phases in COMMANDS:
+        profile(curve, name, make_apdu, setup, phases, args.runs)
+
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main())
@@ -0,0 +1,754 @@
+"""
+ Simulated card running the Curve25519Test applet
+
+ Behaves like a pyscard connection (connect, disconnect, getATR, transmit),
+ so JCCurve25519 and the tools built on it run without a reader or card:
+
+    curve = JCCurve25519()
+    curve.connectSimulator()
+
+ The applet is mirrored command by command from Curve25519Test.java: the
+ same status words, error codes, key state per logical channel, ephemeral
+ key and nonce pools, and the clamping and shifting done on card. The ECC
+ engine of the card (KeyAgreement.ALG_EC_SVDP_DH_PLAIN) is a fixed-length
+ x-only ladder. Timings measured here are the ones of this Python code,
+ not of a card; they show data dependencies in the code paths, not card
+ execution times.
+
+ SimulatedApplet(diagnostics=True) mirrors the diagnostics build
+ (curve25519_diag.cap) with its counters and skippable phases.
+
+ =======================================================================
+
+ This is free and unencumbered software released into the public domain.
+
+ Anyone is free to copy, modify, publish, use, compile, sell, or
+ distribute this software, either in source code form or as a compiled
+ binary, for any purpose, commercial or non-commercial, and by any
+ means.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ OTHER DEALINGS IN THE SOFTWARE.
+"""
+
+import hashlib
+import os
+
+
+class CardException(Exception):
+    """ ISOException / CryptoException thrown inside the simulated applet
+    """
+
+    def __init__(self, sw=None, reason=None):
+        Exception.__init__(self)
+        self.sw = sw
+        self.reason = reason
+
+
+class SimulatedApplet:
+    """ Python model of Curve25519Test (see Curve25519Test.java)
+    """
+
+    VERSION_NUMBER = 0x5519
+
+    # Curve25519 Weierstrass parameters, as on card
+    p = pow(2, 255) - 19
+    a = 0x2aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa984914a144
+    b = 0x7b425ed097b425ed097b425ed097b425ed097b425ed097b4260b5e9c7710c864
+    Gx = 0x2aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaad245a
+    Gy = 0x20ae19a1b8a086b4e01edd2c7748d14c923d4d7e6d7c61b229e9c5a27eced3d9
+    r = 0x1000000000000000000000000000000014def9dea2f79cd65812631a5cf5d3ed
+
+    # Montgomery u = X - A/3 and sqrt(-486664) for the Edwards map
+    aDiv3 = 0x2aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaad2451
+    a24 = (486662 - 2) // 4
+    sqrtM486664 = 0x70d9120b9f5ff9442d84f723fc03b0813a5e2c2eb482e57d3391fb5500ba81e7
+
+    # Command codes
+    GENERATE_KEYPAIR = 0x01
+    LOAD_PRIVATE_KEY = 0x02
+    COMPUTE_SHARED_SECRET = 0x03
+    PRECOMPUTE_EPHEMERAL = 0x04
+    TAKE_EPHEMERAL = 0x05
+    KEY_STATUS = 0x06
+    LOAD_SIGNING_KEY = 0x07
+    SET_SIGNING_KEY_POINT = 0x08
+    PRECOMPUTE_NONCE = 0x09
+    COMMIT_NONCE = 0x0A
+    SIGN = 0x0B
+    DIAGNOSTICS = 0x0C
+
+    OPTION_VOLATILE = 0x02
+    MAX_CHANNELS = 4
+
+    STATUS_KEY_VALID = 0x01
+    STATUS_PERSISTENT = 0x02
+    STATUS_AGREEMENT_READY = 0x04
+
+    POOL_SIZE = 4
+    NONCE_POOL_SIZE = 4
+
+    SLOT_EMPTY = 0
+    SLOT_READY = 1
+    SLOT_PENDING = 2
+
+    # ISO7816 status words
+    SW_NO_ERROR = 0x9000
+    SW_DATA_INVALID = 0x6984
+    SW_CONDITIONS_NOT_SATISFIED = 0x6985
+    SW_WRONG_DATA = 0x6A80
+    SW_FUNC_NOT_SUPPORTED = 0x6A81
+    SW_FILE_FULL = 0x6A84
+    SW_INS_NOT_SUPPORTED = 0x6D00
+    SW_WRONG_P1P2 = 0x6B00
+
+    # CryptoException reason
+    ILLEGAL_VALUE = 1
+
+    # Diagnostics build: skippable phases and counter layout (see
+    # Diagnostics.java)
+    PHASE_INIT_KEYS = 0x01
+    PHASE_SET_S = 0x02
+    PHASE_AGREEMENT_INIT = 0x04
+    PHASE_GENERATE_SECRET = 0x08
+    PHASE_KEY_STATE = 0x10
+
+    ERROR_COUNTERS = 16
+    ERROR_EEEE = 6
+    ERROR_STATUS_WORD = 7
+    KEY_WRITES = 24
+    ARRAY_WRITES = 25
+    COUNTER_COUNT = 26
+
+    def __init__(self, sha512=True, diagnostics=False):
+        # Persistent (EEPROM) state
+        self.keys = [None] * self.MAX_CHANNELS
+        self.keyPersistent = [False] * self.MAX_CHANNELS
+        self.publicKeys = [[0] * 32 for _ in range(self.MAX_CHANNELS)]
+
+        self.poolScalars = [[0] * 32 for _ in range(self.POOL_SIZE)]
+        self.poolPublicKeys = [[0] * 32 for _ in range(self.POOL_SIZE)]
+        self.poolState = [self.SLOT_EMPTY] * self.POOL_SIZE
+
+        # Signing key and nonce pool per logical channel
+        self.signScalars = [0] * self.MAX_CHANNELS
+        self.signPublicKeys = [[0] * 32 for _ in range(self.MAX_CHANNELS)]
+        self.signPending = [[0] * 64 for _ in range(self.MAX_CHANNELS)]
+        self.signStates = [self.SLOT_EMPTY] * self.MAX_CHANNELS
+
+        self.nonceScalars = [[0] * self.NONCE_POOL_SIZE for _ in range(self.MAX_CHANNELS)]
+        self.noncePoints = [[[0] * 32 for _ in range(self.NONCE_POOL_SIZE)] for _ in range(self.MAX_CHANNELS)]
+        self.noncePending = [[[0] * 64 for _ in range(self.NONCE_POOL_SIZE)] for _ in range(self.MAX_CHANNELS)]
+        self.nonceState = [[self.SLOT_EMPTY] * self.NONCE_POOL_SIZE for _ in range(self.MAX_CHANNELS)]
+
+        # SHA-512 is not available on all cards
+        self.sha512 = sha512
+
+        self.diagnostics = diagnostics
+
+        self.reset()
+
+    def reset(self):
+        # CLEAR_ON_RESET state
+        self.keyValid = [False] * self.MAX_CHANNELS
+        self.agreementReady = [False] * self.MAX_CHANNELS
+
+        self.counters = [0] * self.COUNTER_COUNT
+        self.skipped = 0
+
+    # Diagnostics build
+
+    def count(self, index, n=1):
+        if self.diagnostics:
+            self.counters[index] = (self.counters[index] + n) & 0xffff
+
+    def count_writes(self, keyWrites, arrayWrites):
+        self.count(self.KEY_WRITES, keyWrites)
+        self.count(self.ARRAY_WRITES, arrayWrites)
+
+    def count_error(self, code):
+        slot = 0
+
+        if 1 <= code <= 5:
+            slot = code
+        elif code == 0xEEEE:
+            slot = self.ERROR_EEEE
+
+        self.count(self.ERROR_COUNTERS + slot)
+
+    def skip(self, phase):
+        return self.diagnostics and (self.skipped & phase) != 0
+
+    def init_keys(self):
+        # Domain parameters of the private key and of the public key
+        self.count_writes(10, 0)
+
+    # Byte array helpers (MSByte first, as on card)
+
+    @staticmethod
+    def to_int(a):
+        n = 0
+        for x in a:
+            n = (n << 8) | x
+        return n
+
+    @staticmethod
+    def to_bytes(n, length=32):
+        return [(n >> (8 * (length - 1 - i))) & 0xff for i in range(length)]
+
+    @staticmethod
+    def shift_array_right_by_3(a):
+        if len(a) == 0:
+            return
+
+        for i in range(len(a) - 1, 0, -1):
+            carry = (a[i - 1] & 0x7) << 5
+            a[i] = ((a[i] >> 3) & 0x1F) | carry
+
+        a[0] = (a[0] >> 3) & 0x1F
+
+    @staticmethod
+    def clamp_and_shift(a):
+        a[0] &= 0x7F
+        a[0] |= 0x40
+        a[31] &= 0xF8
+
+        SimulatedApplet.shift_array_right_by_3(a)
+
+    # ECC engine of the card
+
+    def on_curve(self, x, y):
+        p = self.p
+        return x < p and y < p and (y * y - x * x * x - self.a * x - self.b) % p == 0
+
+    def generate_secret(self, s, x, y):
+        """ X coordinate of s * (x, y), like KeyAgreement.ALG_EC_SVDP_DH_PLAIN
+        """
+        p = self.p
+
+        if s == 0 or s >= self.r or not self.on_curve(x, y):
+            raise CardException(reason=self.ILLEGAL_VALUE)
+
+        # Montgomery ladder on u = X - A/3, always 255 steps
+        u = (x - self.aDiv3) % p
+        x2, z2, x3, z3 = 1, 0, u, 1
+        swap = 0
+
+        for t in range(254, -1, -1):
+            bit = (s >> t) & 1
+            swap ^= bit
+            mask = -swap
+            dx = (x2 ^ x3) & mask
+            dz = (z2 ^ z3) & mask
+            x2, x3, z2, z3 = x2 ^ dx, x3 ^ dx, z2 ^ dz, z3 ^ dz
+            swap = bit
+
+            A = x2 + z2
+            AA = A * A % p
+            B = x2 - z2
+            BB = B * B % p
+            E = AA - BB
+            C = x3 + z3
+            D = x3 - z3
+            DA = D * A % p
+            CB = C * B % p
+            x3 = (DA + CB) ** 2 % p
+            z3 = u * (DA - CB) ** 2 % p
+            x2 = AA * BB % p
+            z2 = E * (AA + self.a24 * E) % p
+
+        mask = -swap
+        dx = (x2 ^ x3) & mask
+        dz = (z2 ^ z3) & mask
+        x2, z2 = x2 ^ dx, z2 ^ dz
+
+        if z2 == 0:
+            raise CardException(reason=self.ILLEGAL_VALUE)
+
+        return (x2 * pow(z2, p - 2, p) + self.aDiv3) % p
+
+    def scalar_mult_base_pair(self, channel, s):
+        self.agreementReady[channel] = False
+
+        x0 = self.generate_secret(s, self.Gx, self.Gy)
+        x1 = self.generate_secret((s + 1) % self.r, self.Gx, self.Gy)
+        self.count_writes(2, 0)
+
+        return self.to_bytes(x0) + self.to_bytes(x1)
+
+    def complete_point(self, xs, data):
+        """ Checks the coordinates sent by the host, see completePoint in
+            Curve25519Test. Returns the encoded point or None
+        """
+        p = self.p
+        xW = self.to_int(xs[0:32])
+        x1W = self.to_int(xs[32:64])
+        yW = self.to_int(data[0:32])
+        xE = self.to_int(data[32:64])
+        yE = self.to_int(data[64:96])
+
+        if yW >= p or xE >= p or yE >= p or xW == self.Gx:
+            return None
+
+        if (yW * yW - xW * xW * xW - self.a * xW - self.b) % p != 0:
+            return None
+
+        t = (self.Gx - xW) ** 2
+        if (x1W + xW + self.Gx) * t % p != (self.Gy - yW) ** 2 % p:
+            return None
+
+        u = (xW - self.aDiv3) % p
+        if yE * (u + 1) % p != (u - 1) % p:
+            return None
+        if xE * yW % p != self.sqrtM486664 * u % p:
+            return None
+
+        enc = self.to_bytes(yE)[::-1]
+        enc[31] |= (xE & 1) << 7
+        return enc
+
+    # Key state
+
+    def is_key_usable(self, channel):
+        return self.keyValid[channel] or self.keyPersistent[channel]
+
+    def invalidate_key(self, channel):
+        self.keyPersistent[channel] = False
+        self.count_writes(0, 1)
+
+        self.keyValid[channel] = False
+        self.agreementReady[channel] = False
+
+    def set_key_loaded(self, channel, pk, persistent, agreementReady):
+        if not self.skip(self.PHASE_KEY_STATE):
+            self.publicKeys[channel] = list(pk)
+            self.keyPersistent[channel] = persistent
+            self.count_writes(0, 2)
+
+        self.keyValid[channel] = True
+        self.agreementReady[channel] = agreementReady
+
+    def select(self, channel):
+        return channel < self.MAX_CHANNELS
+
+    def deselect(self, channel):
+        if channel < self.MAX_CHANNELS and not self.keyPersistent[channel]:
+            self.keyValid[channel] = False
+
+    def count_ready(self, states):
+        return sum(1 for s in states if s == self.SLOT_READY)
+
+    def fill_pool(self, channel, maximum):
+        self.agreementReady[channel] = False
+        generated = 0
+
+        for slot in range(self.POOL_SIZE):
+            if self.poolState[slot] != self.SLOT_EMPTY:
+                continue
+
+            if maximum != 0 and generated >= maximum:
+                break
+
+            sk = list(os.urandom(32))
+            self.clamp_and_shift(sk)
+
+            pk = self.generate_secret(self.to_int(sk), self.Gx, self.Gy)
+
+            self.poolScalars[slot] = sk
+            self.poolPublicKeys[slot] = self.to_bytes(pk)
+            self.poolState[slot] = self.SLOT_READY
+            self.count_writes(1, 3)
+
+            generated += 1
+
+    # APDU processing
+
+    def process(self, channel, ins, p1, p2, data):
+        """ Returns (response data, status word) for one command APDU
+        """
+        self.count(ins if ins < 16 else 0)
+
+        try:
+            return self.dispatch(channel, ins, p1, p2, data), self.SW_NO_ERROR
+        except CardException as e:
+            if e.sw is not None:
+                self.count(self.ERROR_COUNTERS + self.ERROR_STATUS_WORD)
+                return [], e.sw
+
+            # Error code response, as sent by the applet
+            self.count_error(e.reason)
+            return [(e.reason >> 8) & 0xff, e.reason & 0xff], self.SW_NO_ERROR
+
+    def dispatch(self, channel, ins, p1, p2, data):
+        if ins == self.GENERATE_KEYPAIR:
+            sk = list(os.urandom(32))
+            self.clamp_and_shift(sk)
+
+            self.invalidate_key(channel)
+            self.init_keys()
+            self.count_writes(1, 0)
+
+            s = self.to_int(sk)
+            pk = self.to_bytes(self.generate_secret(s, self.Gx, self.Gy))
+
+            self.keys[channel] = s
+            self.set_key_loaded(channel, pk, True, True)
+
+            return sk + pk
+
+        if ins == self.LOAD_PRIVATE_KEY:
+            if len(data) != 32:
+                raise CardException(sw=self.SW_DATA_INVALID)
+
+            persistent = (p1 & self.OPTION_VOLATILE) == 0
+
+            self.invalidate_key(channel)
+
+            if not self.skip(self.PHASE_INIT_KEYS):
+                self.init_keys()
+
+            sk = list(data)
+            self.clamp_and_shift(sk)
+
+            if not self.skip(self.PHASE_SET_S):
+                self.keys[channel] = self.to_int(sk)
+                self.count_writes(1, 0)
+
+            # Without GENERATE_SECRET the output is not meaningful
+            pk = [0] * 32
+
+            if not self.skip(self.PHASE_GENERATE_SECRET):
+                pk = self.to_bytes(self.generate_secret(self.keys[channel], self.Gx, self.Gy))
+
+            self.set_key_loaded(channel, pk, persistent, True)
+
+            return pk
+
+        if ins == self.COMPUTE_SHARED_SECRET:
+            if len(data) != 64 or not self.is_key_usable(channel):
+                raise CardException(sw=self.SW_DATA_INVALID)
+
+            self.agreementReady[channel] = True
+
+            if self.skip(self.PHASE_GENERATE_SECRET):
+                return [0] * 32
+
+            return self.to_bytes(self.generate_secret(self.keys[channel], self.to_int(data[0:32]), self.to_int(data[32:64])))
+
+        if ins == self.PRECOMPUTE_EPHEMERAL:
+            self.fill_pool(channel, p1)
+
+            return [self.count_ready(self.poolState)]
+
+        if ins == self.TAKE_EPHEMERAL:
+            slot = 0
+            while slot < self.POOL_SIZE and self.poolState[slot] != self.SLOT_READY:
+                slot += 1
+
+            if slot == self.POOL_SIZE:
+                raise CardException(sw=self.SW_CONDITIONS_NOT_SATISFIED)
+
+            self.poolState[slot] = self.SLOT_EMPTY
+            self.count_writes(0, 1)
+            self.invalidate_key(channel)
+
+            # Domain parameters are set at install, only the scalar is written
+            self.keys[channel] = self.to_int(self.poolScalars[slot])
+            self.count_writes(1, 0)
+            pk = list(self.poolPublicKeys[slot])
+            self.set_key_loaded(channel, pk, False, False)
+
+            self.poolScalars[slot] = [0] * 32
+            self.count_writes(0, 1)
+
+            return pk
+
+        if ins == self.KEY_STATUS:
+            status = 0
+            pk = [0] * 32
+
+            if self.is_key_usable(channel):
+                status |= self.STATUS_KEY_VALID
+                pk = list(self.publicKeys[channel])
+
+            if self.keyPersistent[channel]:
+                status |= self.STATUS_PERSISTENT
+
+            if self.agreementReady[channel]:
+                status |= self.STATUS_AGREEMENT_READY
+
+            return [status, self.count_ready(self.poolState)] + pk
+
+        if ins == self.LOAD_SIGNING_KEY:
+            if not self.sha512:
+                raise CardException(sw=self.SW_FUNC_NOT_SUPPORTED)
+
+            if len(data) != 32:
+                raise CardException(sw=self.SW_DATA_INVALID)
+
+            self.signStates[channel] = self.SLOT_EMPTY
+            self.count_writes(0, 1)
+
+            h = list(hashlib.sha512(bytes(data)).digest())
+            h[0] &= 0xF8
+            h[31] &= 0x7F
+            h[31] |= 0x40
+
+            self.signScalars[channel] = self.to_int(h[0:32][::-1]) % self.r
+            self.signPending[channel] = self.scalar_mult_base_pair(channel, self.signScalars[channel])
+            self.signStates[channel] = self.SLOT_PENDING
+            self.count_writes(0, 3)
+
+            return list(self.signPending[channel])
+
+        if ins == self.SET_SIGNING_KEY_POINT:
+            if len(data) != 96:
+                raise CardException(sw=self.SW_DATA_INVALID)
+
+            if self.signStates[channel] != self.SLOT_PENDING:
+                raise CardException(sw=self.SW_CONDITIONS_NOT_SATISFIED)
+
+            enc = self.complete_point(self.signPending[channel], data)
+            if enc is None:
+                raise CardException(sw=self.SW_WRONG_DATA)
+
+            self.signPublicKeys[channel] = enc
+            self.signStates[channel] = self.SLOT_READY
+            self.count_writes(0, 2)
+
+            return list(enc)
+
+        if ins == self.PRECOMPUTE_NONCE:
+            nonceState = self.nonceState[channel]
+            nonceScalars = self.nonceScalars[channel]
+            noncePending = self.noncePending[channel]
+
+            if self.SLOT_EMPTY in nonceState:
+                slot = nonceState.index(self.SLOT_EMPTY)
+            elif self.SLOT_PENDING in nonceState:
+                slot = nonceState.index(self.SLOT_PENDING)
+            else:
+                raise CardException(sw=self.SW_FILE_FULL)
+
+            nonceState[slot] = self.SLOT_EMPTY
+            self.count_writes(0, 1)
+
+            # Random r < 2^252 < r
+            n = list(os.urandom(32))
+            n[0] &= 0x0F
+
+            nonceScalars[slot] = self.to_int(n)
+            noncePending[slot] = self.scalar_mult_base_pair(channel, nonceScalars[slot])
+            nonceState[slot] = self.SLOT_PENDING
+            self.count_writes(0, 3)
+
+            return [slot] + noncePending[slot]
+
+        if ins == self.COMMIT_NONCE:
+            nonceState = self.nonceState[channel]
+            noncePoints = self.noncePoints[channel]
+            noncePending = self.noncePending[channel]
+            slot = p1
+
+            if len(data) != 96:
+                raise CardException(sw=self.SW_DATA_INVALID)
+
+            if slot >= self.NONCE_POOL_SIZE or nonceState[slot] != self.SLOT_PENDING:
+                raise CardException(sw=self.SW_CONDITIONS_NOT_SATISFIED)
+
+            enc = self.complete_point(noncePending[slot], data)
+            if enc is None:
+                raise CardException(sw=self.SW_WRONG_DATA)
+
+            noncePoints[slot] = enc
+            nonceState[slot] = self.SLOT_READY
+            self.count_writes(0, 2)
+
+            return [self.count_ready(nonceState)]
+
+        if ins == self.SIGN:
+            if not self.sha512:
+                raise CardException(sw=self.SW_FUNC_NOT_SUPPORTED)
+
+            nonceState = self.nonceState[channel]
+            nonceScalars = self.nonceScalars[channel]
+            noncePoints = self.noncePoints[channel]
+
+            if self.signStates[channel] != self.SLOT_READY or self.SLOT_READY not in nonceState:
+                raise CardException(sw=self.SW_CONDITIONS_NOT_SATISFIED)
+
+            slot = nonceState.index(self.SLOT_READY)
+            nonceState[slot] = self.SLOT_EMPTY
+            self.count_writes(0, 1)
+
+            R = noncePoints[slot]
+            h = hashlib.sha512(bytes(R) + bytes(self.signPublicKeys[channel]) + bytes(data)).digest()
+            k = int.from_bytes(h, 'little') % self.r
+            S = (nonceScalars[slot] + k * self.signScalars[channel]) % self.r
+
+            nonceScalars[slot] = 0
+            self.count_writes(0, 1)
+
+            return list(R) + self.to_bytes(S)[::-1]
+
+        if ins == self.DIAGNOSTICS and self.diagnostics:
+            if p1 == 0x03:
+                # One ModArith operation, see testArithmetic in Curve25519Test
+                m = self.r if p2 & 0x80 else self.p
+
+                if len(data) != 64:
+                    raise CardException(sw=self.SW_DATA_INVALID)
+
+                a = self.to_int(data[0:32])
+                b = self.to_int(data[32:64])
+                op = p2 & 0x7F
+
+                if op == 0x00:
+                    result = a * b % m
+                elif op == 0x01:
+                    result = (a + b) % m
+                elif op == 0x02:
+                    result = (a - b) % m
+                elif op == 0x03:
+                    result = self.to_int(data) % m
+                else:
+                    raise CardException(sw=self.SW_WRONG_P1P2)
+
+                return self.to_bytes(result)
+
+            if p1 == 0x02:
+                # No key stays usable across a mask change
+                for c in range(self.MAX_CHANNELS):
+                    self.invalidate_key(c)
+
+                self.skipped = p2
+            elif p1 not in (0x00, 0x01):
+                raise CardException(sw=self.SW_WRONG_P1P2)
+
+            response = []
+            for c in self.counters:
+                response += [(c >> 8) & 0xff, c & 0xff]
+
+            if p1 == 0x01:
+                self.counters = [0] * self.COUNTER_COUNT
+
+            return response + [self.skipped]
+
+        raise CardException(sw=self.SW_INS_NOT_SUPPORTED)
+
+
+class SimulatedCard:
+    """ pyscard-like connection to a card with the applet installed
+    """
+
+    AID = [0xc1, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8]
+    ATR = [0x3b, 0x80, 0x80, 0x01, 0x01]
+
+    # Logical channels supported by the simulated card (Javacard 3.0.4)
+    CHANNELS = 20
+
+    SW_LOGICAL_CHANNEL_NOT_SUPPORTED = 0x6881
+    SW_FILE_NOT_FOUND = 0x6A82
+    SW_APPLET_SELECT_FAILED = 0x6999
+    SW_COMMAND_NOT_ALLOWED = 0x6986
+
+    def __init__(self, applet=None):
+        self.applet = applet if applet is not None else SimulatedApplet()
+        self.powered = False
+        self.reset()
+
+    def reset(self):
+        """ Card reset: all logical channels closed, nothing selected
+        """
+        self.applet.reset()
+        self.open = [False] * self.CHANNELS
+        self.open[0] = True
+        self.selected = [False] * self.CHANNELS
+
+    # pyscard connection interface
+
+    def connect(self, *args, **kwargs):
+        self.reset()
+        self.powered = True
+
+    def disconnect(self):
+        self.powered = False
+
+    def getATR(self):
+        return list(self.ATR)
+
+    @staticmethod
+    def channel_of(cla):
+        if cla & 0x40:
+            return 4 + (cla & 0x0F)
+        return cla & 0x03
+
+    def transmit(self, apdu):
+        if not self.powered:
+            raise Exception("Card not connected")
+
+        data, sw = self.exchange(list(apdu))
+        return data, sw >> 8, sw & 0xff
+
+    def exchange(self, apdu):
+        cla, ins, p1, p2 = apdu[0:4]
+        lc = apdu[4] if len(apdu) > 4 else 0
+        data = apdu[5:5 + lc] if len(apdu) > 5 else []
+
+        channel = self.channel_of(cla)
+
+        if not self.open[channel]:
+            return [], self.SW_LOGICAL_CHANNEL_NOT_SUPPORTED
+
+        # MANAGE CHANNEL
+        if ins == 0x70:
+            # Open the channel in P2, or the next free one (P2 = 0, returned)
+            if p1 == 0x00 and p2 != 0:
+                if p2 >= self.CHANNELS or self.open[p2]:
+                    return [], self.SW_LOGICAL_CHANNEL_NOT_SUPPORTED
+
+                self.open[p2] = True
+                return [], 0x9000
+
+            if p1 == 0x00:
+                if False not in self.open:
+                    return [], self.SW_LOGICAL_CHANNEL_NOT_SUPPORTED
+
+                n = self.open.index(False)
+                self.open[n] = True
+                return [n], 0x9000
+
+            if p1 == 0x80 and 0 < p2 < self.CHANNELS and self.open[p2]:
+                if self.selected[p2]:
+                    self.applet.deselect(p2)
+                    self.selected[p2] = False
+
+                self.open[p2] = False
+                return [], 0x9000
+
+            return [], self.SW_COMMAND_NOT_ALLOWED
+
+        # SELECT by AID, also re-selection on the same channel
+        if ins == 0xA4 and p1 == 0x04:
+            if data != self.AID:
+                return [], self.SW_FILE_NOT_FOUND
+
+            if self.selected[channel]:
+                self.applet.deselect(channel)
+                self.selected[channel] = False
+
+            if not self.applet.select(channel):
+                return [], self.SW_APPLET_SELECT_FAILED
+
+            self.selected[channel] = True
+            return [(SimulatedApplet.VERSION_NUMBER >> 8) & 0xff, SimulatedApplet.VERSION_NUMBER & 0xff], 0x9000
+
+        if not self.selected[channel]:
+            return [], SimulatedApplet.SW_INS_NOT_SUPPORTED
+
+        return self.applet.process(channel, ins, p1, p2, data)
@@ -0,0 +1,325 @@
+"""
+ Timing leakage tests for the Curve25519 applet and the host conversions
+
+ A dudect-style test ("Dude, is my code constant time?", Reparaz, Balasch
+ and Verbauwhede, 2017): an operation is timed many times on two classes
+ of inputs, one fixed value and fresh random values, interleaved in random
+ order so drift and noise hit both classes alike. Welch's t-test then
+ checks whether the timing distributions of both classes differ. It is
+ run on the raw measurements, on measurements cropped at several
+ percentiles (removes the long tail of interrupts and scheduling), and as
+ a second order test on the centered squares.
+
+ |t| above 4.5 means the timing depends on the input with high
+ confidence. Small values are no proof of constant time, only that no
+ leak was found with this number of measurements.
+
+ Only the card targets run with --card are a gate: the exit status is 1
+ if one of them leaks. The host targets and the card targets on the
+ simulated card measure Python code. Python big integer arithmetic is not
+ constant time, so these targets leak with enough measurements whatever
+ the change, and they never set the exit status. Without --card the tool
+ only reports, it cannot catch a new leak in CI; compare the t values
+ before and after a change.
+
+    python jc_timing.py                     all targets, simulated card
+    python jc_timing.py -n 50000 host-smul  one target, more measurements
+    python jc_timing.py --card              real card in the first reader
+
+ Targets on the simulated card measure the Python model of the applet
+ (jc_simulator.py), i.e. data dependencies in the code paths, not card
+ execution times. Use --card for the timing of a real card.
+
+ =======================================================================
+
+ This is free and unencumbered software released into the public domain.
+
+ Anyone is free to copy, modify, publish, use, compile, sell, or
+ distribute this software, either in source code form or as a compiled
+ binary, for any purpose, commercial or non-commercial, and by any
+ means.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ OTHER DEALINGS IN THE SOFTWARE.
+"""
+
+import argparse
+import gc
+import math
+import os
+import random
+import sys
+import time
+
+from jc_curve25519 import JCCurve25519
+
+# |t| above this value is reported as a leak (as in dudect)
+T_THRESHOLD = 4.5
+
+# Number of percentiles the measurements are cropped at
+CROPS = 10
+
+# Class of the measurement
+FIXED = 0
+RANDOM = 1
+
+
+class TTest:
+    """ Welch's t-test on two classes, means and variances are updated
+        online (Welford)
+    """
+
+    def __init__(self):
+        self.n = [0, 0]
+        self.mean = [0.0, 0.0]
+        self.m2 = [0.0, 0.0]
+
+    def push(self, x, c):
+        self.n[c] += 1
+        delta = x - self.mean[c]
+        self.mean[c] += delta / self.n[c]
+        self.m2[c] += delta * (x - self.mean[c])
+
+    def count(self):
+        return self.n[0] + self.n[1]
+
+    def t(self):
+        if self.n[0] < 2 or self.n[1] < 2:
+            return 0.0
+
+        v0 = self.m2[0] / (self.n[0] - 1)
+        v1 = self.m2[1] / (self.n[1] - 1)
+        den = math.sqrt(v0 / self.n[0] + v1 / self.n[1])
+
+        if den == 0:
+            return 0.0
+
+        return (self.mean[0] - self.mean[1]) / den
+
+
+def percentile(s, q):
+    """ q-th quantile of the sorted list s
+    """
+    return s[min(len(s) - 1, int(q * len(s)))]
+
+
+def analyze(times, classes):
+    """ Runs all t-tests, returns a list of (name, TTest)
+    """
+    s = sorted(times)
+
+    raw = TTest()
+    crops = [(percentile(s, 1 - 0.5 ** (10.0 * (i + 1) / CROPS)), TTest()) for i in range(CROPS)]
+    second = TTest()
+
+    for x, c in zip(times, classes):
+        raw.push(x, c)
+
+        for threshold, t in crops:
+            if x < threshold:
+                t.push(x, c)
+
+    for x, c in zip(times, classes):
+        second.push((x - raw.mean[c]) ** 2, c)
+
+    tests = [("raw", raw)]
+    tests += [("< %.1f us" % (threshold / 1000.0), t) for threshold, t in crops]
+    tests += [("2nd order", second)]
+
+    return tests
+
+
+def measure(operation, inputs, classes, check=None):
+    """ Times operation on each input (interleaved classes), in ns
+    """
+    times = []
+
+    # Warm up caches and the card before recording
+    for i in range(min(100, len(inputs) // 10)):
+        operation(inputs[i])
+
+    gc.collect()
+    gc.disable()
+
+    try:
+        for x in inputs:
+            b = time.perf_counter_ns()
+            result = operation(x)
+            e = time.perf_counter_ns()
+
+            if check is not None:
+                check(result)
+
+            times.append(e - b)
+    finally:
+        gc.enable()
+
+    return times
+
+
+def report(name, description, times, classes, model):
+    print("== " + name + ": " + description + (" (Python model, not in exit status)" if model else ""))
+
+    print("  class        n      min      p10   median      p90      p99      max  (us)")
+
+    for c, label in [(FIXED, "fixed"), (RANDOM, "random")]:
+        s = sorted(t for t, k in zip(times, classes) if k == c)
+
+        if len(s) == 0:
+            continue
+
+        row = [s[0], percentile(s, 0.1), percentile(s, 0.5), percentile(s, 0.9), percentile(s, 0.99), s[-1]]
+        print("  %-6s %8d " % (label, len(s)) + " ".join("%8.1f" % (x / 1000.0) for x in row))
+
+    tests = analyze(times, classes)
+    worst, test = max(tests, key=lambda t: abs(t[1].t()))
+
+    for label, t in tests:
+        print("  t = %8.2f  %-12s (%d measurements)" % (t.t(), label, t.count()))
+
+    leak = abs(test.t()) > T_THRESHOLD
+
+    print("  max |t| = %.2f (%s): %s" % (abs(test.t()), worst, "LEAK" if leak else "no leak detected"))
+    print('\n')
+
+    return leak
+
+
+# Inputs of the two classes
+
+def random_scalar():
+    return JCCurve25519.clamp(JCCurve25519.unpack_le(os.urandom(32)))
+
+
+def random_point():
+    """ Random point on Curve25519 (Montgomery u), with its Weierstrass form
+    """
+    while True:
+        u = JCCurve25519.unpack_le(os.urandom(32)) % JCCurve25519.p
+        xW, yW = JCCurve25519.montgomery_to_weierstrass(u)
+
+        if yW != 0:
+            return u, xW, yW
+
+
+def make_classes(n):
+    return [random.getrandbits(1) for _ in range(n)]
+
+
+# Targets: (description, setup(curve, classes) -> (operation, inputs, check))
+
+def expect(length):
+    def check(response):
+        data, sw1, sw2 = response
+
+        if sw1 != 0x90 or sw2 != 0x00 or len(data) != length:
+            raise Exception("Card error")
+
+    return check
+
+
+def setup_card_load(curve, classes):
+    fixed = [0x00] * 32
+
+    inputs = [[0x00, 0x02, 0x00, 0x00, 0x20] + (fixed if c == FIXED else list(os.urandom(32))) for c in classes]
+
+    return curve.transmitReceive, inputs, expect(32)
+
+
+def setup_card_compute(curve, classes):
+    curve.setPrivateKey(random_scalar())
+
+    _, fxW, fyW = random_point()
+
+    def apdu(xW, yW):
+        return [0x00, 0x03, 0x00, 0x00, 0x40] + JCCurve25519.pack_be(xW) + JCCurve25519.pack_be(yW)
+
+    fixed = apdu(fxW, fyW)
+    inputs = [fixed if c == FIXED else apdu(*random_point()[1:]) for c in classes]
+
+    return curve.transmitReceive, inputs, expect(32)
+
+
+def setup_host_smul(curve, classes):
+    fixed = JCCurve25519.clamp(0)
+    inputs = [fixed if c == FIXED else random_scalar() for c in classes]
+
+    return (lambda s: JCCurve25519.smul(s, 9)), inputs, None
+
+
+def setup_host_base(curve, classes):
+    fixed = JCCurve25519.clamp(0)
+    inputs = [fixed if c == FIXED else random_scalar() for c in classes]
+
+    return JCCurve25519.smul_base, inputs, None
+
+
+def setup_host_convert(curve, classes):
+    fixed = JCCurve25519.Gx_w
+    inputs = [fixed if c == FIXED else random_point()[1] for c in classes]
+
+    return JCCurve25519.card_to_montgomery, inputs, None
+
+
+TARGETS = [
+    ("card-load", "LOAD_PRIVATE_KEY, fixed vs random private key", setup_card_load, True),
+    ("card-compute", "COMPUTE_SHARED_SECRET, fixed vs random peer point", setup_card_compute, True),
+    ("host-smul", "JCCurve25519.smul(s, 9), fixed vs random scalar", setup_host_smul, False),
+    ("host-base", "JCCurve25519.smul_base(s), fixed vs random scalar", setup_host_base, False),
+    ("host-convert", "JCCurve25519.card_to_montgomery, fixed vs random card output", setup_host_convert, False),
+]
+
+
+def main():
+    parser = argparse.ArgumentParser(description="dudect-style timing leakage tests")
+    parser.add_argument("targets", nargs="*", help="targets to run (default: all): " + ", ".join(t[0] for t in TARGETS))
+    parser.add_argument("-n", "--measurements", type=int, default=10000, help="measurements per target")
+    parser.add_argument("--card", nargs="?", const="", default=None, metavar="READER",
+                        help="use a real card (in the first reader, or the one whose name contains READER)")
+    args = parser.parse_args()
+
+    names = [t[0] for t in TARGETS]
+    for name in args.targets:
+        if name not in names:
+            parser.error("unknown target " + name)
+
+    targets = [t for t in TARGETS if len(args.targets) == 0 or t[0] in args.targets]
+
+    curve = None
+    gated = args.card is not None and any(t[3] for t in targets)
+
+    if any(t[3] for t in targets):
+        curve = JCCurve25519()
+
+        if args.card is None:
+            curve.connectSimulator()
+        else:
+            curve.connect(args.card if args.card != "" else None)
+
+    leaks = 0
+
+    for name, description, setup, card in targets:
+        classes = make_classes(args.measurements)
+        operation, inputs, check = setup(curve, classes)
+
+        times = measure(operation, inputs, classes, check)
+
+        # Only targets measuring a real card can gate a change
+        model = not card or args.card is None
+
+        if report(name, description, times, classes, model) and not model:
+            leaks += 1
+
+    if not gated:
+        print("Python targets only: reported, not gated (the exit status only covers card targets with --card)")
+
+    return 1 if leaks > 0 else 0
+
+
+if __name__ == "__main__":
+    sys.exit(main())
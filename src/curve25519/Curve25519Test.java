@@ -52,7 +52,7 @@ import javacard.security.Key;
 import javacard.security.KeyBuilder;
 
  
-public class Curve25519Test extends Applet 
+public class Curve25519Test extends Applet implements MultiSelectable
 {
 	// Bogus version number
     private static final short VERSION_NUMBER = (short)0x5519;
@@ -105,16 +105,110 @@ public class Curve25519Test extends Applet
 	};
 	
 	final static short k = (short)8;
+
+	// Constants for the mapping to Ed25519 (Edwards form)
+	//
+	// A/3 =  2aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaad2451
+	//        (Montgomery u = X - A/3, v = Y)
+	// c =    70d9120b9f5ff9442d84f723fc03b0813a5e2c2eb482e57d3391fb5500ba81e7
+	//        sqrt(-486664), sign chosen such that G maps to the Ed25519 base point
+	//
+	// Edwards x = c * u / v, y = (u - 1) / (u + 1)
+
+	final static byte[] aDiv3 = {
+		(byte)0x2a, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xaa, (byte)0xad, (byte)0x24, (byte)0x51
+	};
+
+	final static byte[] sqrtM486664 = {
+		(byte)0x70, (byte)0xd9, (byte)0x12, (byte)0x0b, (byte)0x9f, (byte)0x5f, (byte)0xf9, (byte)0x44, (byte)0x2d, (byte)0x84, (byte)0xf7, (byte)0x23, (byte)0xfc, (byte)0x03, (byte)0xb0, (byte)0x81, (byte)0x3a, (byte)0x5e, (byte)0x2c, (byte)0x2e, (byte)0xb4, (byte)0x82, (byte)0xe5, (byte)0x7d, (byte)0x33, (byte)0x91, (byte)0xfb, (byte)0x55, (byte)0x00, (byte)0xba, (byte)0x81, (byte)0xe7
+	};
  
 	// Command codes
 	private static final byte GENERATE_KEYPAIR     		= (byte)0x01;     
 	private static final byte LOAD_PRIVATE_KEY     		= (byte)0x02;
 	private static final byte COMPUTE_SHARED_SECRET  	= (byte)0x03;
+	private static final byte PRECOMPUTE_EPHEMERAL  	= (byte)0x04;
+	private static final byte TAKE_EPHEMERAL  			= (byte)0x05;
+	private static final byte KEY_STATUS  				= (byte)0x06;
+	private static final byte LOAD_SIGNING_KEY  		= (byte)0x07;
+	private static final byte SET_SIGNING_KEY_POINT  	= (byte)0x08;
+	private static final byte PRECOMPUTE_NONCE  		= (byte)0x09;
+	private static final byte COMMIT_NONCE  			= (byte)0x0A;
+	private static final byte SIGN  					= (byte)0x0B;
+	private static final byte DIAGNOSTICS  			= (byte)0x0C;	// diagnostics build only
+
+	// LOAD_PRIVATE_KEY options (P1). Keys stay usable across deselect and
+	// card reset by default, as before the options were added (0x01, the
+	// former persistent option, is the default and ignored)
+	private static final byte OPTION_VOLATILE = (byte)0x02;
 
-	private KeyAgreement keyAgreement;
-	private ECPrivateKey ecPrivateKey;
+	// Number of logical channels with their own key state (basic channel 0 to 3)
+	private static final byte MAX_CHANNELS = (byte)4;
+
+	// Key state flags, FLAG_COUNT per logical channel
+	private static final short FLAG_KEY_VALID = 0;
+	private static final short FLAG_AGREEMENT_READY = 1;
+	private static final short FLAG_COUNT = 2;
+
+	// KEY_STATUS output bits
+	private static final byte STATUS_KEY_VALID = (byte)0x01;
+	private static final byte STATUS_PERSISTENT = (byte)0x02;
+	private static final byte STATUS_AGREEMENT_READY = (byte)0x04;
+
+	// Number of precomputed ephemeral key pairs kept on card
+	private static final short POOL_SIZE = 4;
+
+	// Number of precomputed Ed25519 nonces kept on card
+	private static final short NONCE_POOL_SIZE = 4;
+
+	// Ephemeral key pool and nonce pool slot states (also used for the signing keys)
+	private static final byte SLOT_EMPTY = (byte)0x00;
+	private static final byte SLOT_READY = (byte)0x01;
+	private static final byte SLOT_PENDING = (byte)0x02;
+
+	// Private key and key agreement per logical channel
+	private KeyAgreement[] keyAgreements;
+	private ECPrivateKey[] ecPrivateKeys;
 	private ECPublicKey ecPublicKey;
-	private boolean keyValid = false;
+
+	// Key state per logical channel: the flags are cleared on card reset,
+	// FLAG_KEY_VALID also on deselect. keyPersistent keeps a key usable
+	// regardless, unless it was loaded with OPTION_VOLATILE or taken from
+	// the ephemeral key pool
+	private boolean[] keyFlags;
+	private boolean[] keyPersistent;
+
+	// Public key of the current private key per logical channel (X, MSByte first)
+	private byte[] publicKeys;
+
+	// Ephemeral key pool: (scalar >> 3) and public key (X, MSByte first) per slot
+	private ECPrivateKey poolPrivateKey;
+	private RandomData random;
+	private byte[] poolScalars;
+	private byte[] poolPublicKeys;
+	private byte[] poolState;
+
+	// Ed25519 signing key per logical channel: scalar (mod r, MSByte first)
+	// and encoded public key (as in RFC 8032). Until the host has sent the
+	// missing coordinates, the X coordinates of scalar * G and
+	// (scalar + 1) * G are kept pending
+	private byte[] signScalars;
+	private byte[] signPublicKeys;
+	private byte[] signPending;
+	private byte[] signStates;
+
+	// Ed25519 nonce pool, NONCE_POOL_SIZE slots per logical channel: scalar,
+	// encoded point and pending X coordinates per slot
+	private byte[] nonceScalars;
+	private byte[] noncePoints;
+	private byte[] noncePending;
+	private byte[] nonceState;
+
+	private MessageDigest sha512;
+	private ModArith modArith;
+
+	// Profiling counters, only allocated in the diagnostics build
+	private Diagnostics diagnostics;
 	
 	private byte[] skBuffer;
     private byte[] scratchpad;
@@ -126,10 +220,61 @@ public class Curve25519Test extends Applet
 		scratchpad = JCSystem.makeTransientByteArray((short) 128, JCSystem.CLEAR_ON_DESELECT);  
 		outBuffer = JCSystem.makeTransientByteArray((short) 32, JCSystem.CLEAR_ON_DESELECT);
 		skBuffer = JCSystem.makeTransientByteArray((short) 32, JCSystem.CLEAR_ON_DESELECT);
-		keyAgreement = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH_PLAIN, false);
+		keyFlags = JCSystem.makeTransientBooleanArray((short)(MAX_CHANNELS * FLAG_COUNT), JCSystem.CLEAR_ON_RESET);
+		keyPersistent = new boolean[MAX_CHANNELS];
+		publicKeys = new byte[(short)(MAX_CHANNELS * 32)];
+
+		keyAgreements = new KeyAgreement[MAX_CHANNELS];
+		ecPrivateKeys = new ECPrivateKey[MAX_CHANNELS];
+
+		for(byte channel = 0; channel < MAX_CHANNELS; channel++)
+		{
+			keyAgreements[channel] = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH_PLAIN, false);
+			ecPrivateKeys[channel] = (ECPrivateKey)KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, keyLength, false);
+		}
 
-		ecPrivateKey = (ECPrivateKey)KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, keyLength, false);
 		ecPublicKey = (ECPublicKey)KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC, keyLength, false);
+
+		poolPrivateKey = (ECPrivateKey)KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, keyLength, false);
+		random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+		poolScalars = new byte[(short)(POOL_SIZE * 32)];
+		poolPublicKeys = new byte[(short)(POOL_SIZE * 32)];
+		poolState = new byte[POOL_SIZE];
+
+		signScalars = new byte[(short)(MAX_CHANNELS * 32)];
+		signPublicKeys = new byte[(short)(MAX_CHANNELS * 32)];
+		signPending = new byte[(short)(MAX_CHANNELS * 64)];
+		signStates = new byte[MAX_CHANNELS];
+		nonceScalars = new byte[(short)(MAX_CHANNELS * NONCE_POOL_SIZE * 32)];
+		noncePoints = new byte[(short)(MAX_CHANNELS * NONCE_POOL_SIZE * 32)];
+		noncePending = new byte[(short)(MAX_CHANNELS * NONCE_POOL_SIZE * 64)];
+		nonceState = new byte[(short)(MAX_CHANNELS * NONCE_POOL_SIZE)];
+		modArith = new ModArith();
+
+		if(Diagnostics.ENABLED)
+		{
+			diagnostics = new Diagnostics();
+		}
+
+		// Domain parameters are set once, TAKE_EPHEMERAL and the key pool only
+		// write the scalar
+		for(byte channel = 0; channel < MAX_CHANNELS; channel++)
+		{
+			setDomainParameters(ecPrivateKeys[channel]);
+		}
+
+		setDomainParameters(ecPublicKey);
+		setDomainParameters(poolPrivateKey);
+
+		// SHA-512 is not available on all cards, signing is disabled without it
+		try
+		{
+			sha512 = MessageDigest.getInstance(MessageDigest.ALG_SHA_512, false);
+		}
+		catch (CryptoException e)
+		{
+			sha512 = null;
+		}
     }
     
 	public static void install(byte[] bArray, short bOffset, byte bLength) 
@@ -158,37 +303,119 @@ public class Curve25519Test extends Applet
 	}
 	 
 	 
-	private short initKeys()
+	// Curve25519 clamping, followed by the shift by 3 (the three remaining
+	// double operations are done on the PC side)
+	private void clamp_and_shift(byte[] a)
 	{
-		short code = 0;
-		
-		try {
+		a[0] &= (byte)0x7F;
+		a[0] |= (byte)0x40;
+		a[31] &= (byte)0xF8;
 
-			// Setup parameters
-			// Prime field
-			ecPrivateKey.setFieldFP(p256, (short)0, (short)p256.length);
-			ecPublicKey.setFieldFP(p256, (short)0, (short)p256.length);
+		shift_array_right_by_3(a);
+	}
 
-			// A coefficient
-			ecPrivateKey.setA(a256, (short)0, (short)a256.length);
-			ecPublicKey.setA(a256, (short)0, (short)a256.length);
-			
-			// B coefficient
-			ecPrivateKey.setB(b256, (short)0, (short)b256.length);
-			ecPublicKey.setB(b256, (short)0, (short)b256.length);
+	// Set the Curve25519 Weierstrass domain parameters on a key
+	private void setDomainParameters(ECKey key)
+	{
+		// Prime field
+		key.setFieldFP(p256, (short)0, (short)p256.length);
+
+		// A coefficient
+		key.setA(a256, (short)0, (short)a256.length);
+
+		// B coefficient
+		key.setB(b256, (short)0, (short)b256.length);
+
+		// base point G
+		key.setG(g256, (short)0, (short)g256.length);
 
-			// base point G
-			ecPrivateKey.setG(g256, (short)0, (short)g256.length);
-			ecPublicKey.setG(g256, (short)0, (short)g256.length);
+		// order of G
+		key.setR(r256, (short)0, (short)32);
 
-			// order of G
-			ecPrivateKey.setR(r256, (short)0, (short)32);
-			ecPublicKey.setR(r256, (short)0, (short)32);
+		countWrites((short)5, (short)0);
 /* BUGBUG: if not commented, this will emit CryptoException.ILLEGAL_VALUE
-			// Note: most cards ignore cofactor internally
-			ecPrivateKey.setK(k);
-			ecPublicKey.setK(k);
+		// Note: most cards ignore cofactor internally
+		key.setK(k);
 /**/
+	}
+
+	// Set the scalar (32 bytes, MSByte first) of a private key
+	private void setScalar(ECPrivateKey key, byte[] s, short sOff)
+	{
+		key.setS(s, sOff, (short)32);
+
+		countWrites((short)1, (short)0);
+	}
+
+	// Copy into a persistent array
+	private void persist(byte[] src, short srcOff, byte[] dest, short destOff, short length)
+	{
+		Util.arrayCopy(src, srcOff, dest, destOff, length);
+
+		countWrites((short)0, (short)1);
+	}
+
+	// Clear part of a persistent array, e.g. a used scalar
+	private void erase(byte[] a, short off, short length)
+	{
+		Util.arrayFillNonAtomic(a, off, length, (byte)0);
+
+		countWrites((short)0, (short)1);
+	}
+
+	// Set the state of an ephemeral key pool or nonce pool slot
+	private void setSlotState(byte[] states, short slot, byte state)
+	{
+		states[slot] = state;
+
+		countWrites((short)0, (short)1);
+	}
+
+	private void setSignState(byte channel, byte state)
+	{
+		signStates[channel] = state;
+
+		countWrites((short)0, (short)1);
+	}
+
+	// Diagnostics build: count EEPROM writes, all writes go through the
+	// helpers above
+	private void countWrites(short keyWrites, short arrayWrites)
+	{
+		if(Diagnostics.ENABLED)
+		{
+			diagnostics.countWrites(keyWrites, arrayWrites);
+		}
+	}
+
+	// Error code of a CryptoException (reason) or other exception (0xEEEE),
+	// sent back in a 2 byte response
+	private void sendErrorCode(APDU apdu, short code)
+	{
+		if(Diagnostics.ENABLED)
+		{
+			diagnostics.countError(code);
+		}
+
+		Util.setShort(apdu.getBuffer(), (short) 0, code);
+		apdu.setOutgoingAndSend((short) 0, (short) 2);
+	}
+
+	// Diagnostics build: false if phase is skipped for timing measurements
+	private boolean runPhase(byte phase)
+	{
+		return !Diagnostics.ENABLED || !diagnostics.skip(phase);
+	}
+	 
+	private short initKeys(ECPrivateKey ecPrivateKey)
+	{
+		short code = 0;
+		
+		try {
+
+			// Setup parameters
+			setDomainParameters(ecPrivateKey);
+			setDomainParameters(ecPublicKey);
 		}
 		catch (CryptoException e)
 		{code = e.getReason();}
@@ -198,7 +425,342 @@ public class Curve25519Test extends Applet
 		return code;
 	}
 
-	public void process(APDU apdu) 
+	public boolean select()
+	{
+		return selectChannel();
+	}
+
+	public boolean select(boolean appInstAlreadyActive)
+	{
+		return selectChannel();
+	}
+
+	public void deselect()
+	{
+		deselectChannel();
+	}
+
+	public void deselect(boolean appInstStillActive)
+	{
+		deselectChannel();
+	}
+
+	// Only channels with their own key state can be used
+	private boolean selectChannel()
+	{
+		return JCSystem.getAssignedChannel() < MAX_CHANNELS;
+	}
+
+	private void deselectChannel()
+	{
+		byte channel = JCSystem.getAssignedChannel();
+
+		// Keys loaded with OPTION_VOLATILE only live for one selection
+		if(channel < MAX_CHANNELS && !keyPersistent[channel])
+		{
+			keyFlags[flag(channel, FLAG_KEY_VALID)] = false;
+		}
+	}
+
+	// Index of a key state flag of a logical channel
+	private static short flag(byte channel, short flag)
+	{
+		return (short)(channel * FLAG_COUNT + flag);
+	}
+
+	private boolean isKeyUsable(byte channel)
+	{
+		return keyFlags[flag(channel, FLAG_KEY_VALID)] || keyPersistent[channel];
+	}
+
+	// Forget the current private key, called before it is overwritten
+	private void invalidateKey(byte channel)
+	{
+		keyPersistent[channel] = false;
+
+		countWrites((short)0, (short)1);
+
+		keyFlags[flag(channel, FLAG_KEY_VALID)] = false;
+		keyFlags[flag(channel, FLAG_AGREEMENT_READY)] = false;
+	}
+
+	// Record a successfully set private key and its public key
+	private void setKeyLoaded(byte channel, byte[] pk, short pkOffset, boolean persistent, boolean agreementReady)
+	{
+		if(runPhase(Diagnostics.PHASE_KEY_STATE))
+		{
+			persist(pk, pkOffset, publicKeys, (short)(channel * 32), (short)32);
+			keyPersistent[channel] = persistent;
+
+			countWrites((short)0, (short)1);
+		}
+
+		keyFlags[flag(channel, FLAG_KEY_VALID)] = true;
+		keyFlags[flag(channel, FLAG_AGREEMENT_READY)] = agreementReady;
+	}
+
+	// Count the ephemeral key pairs ready to be taken
+	private short countReadySlots()
+	{
+		short count = 0;
+
+		for(short slot = 0; slot < POOL_SIZE; slot++)
+		{
+			if(poolState[slot] == SLOT_READY)
+			{
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	// Generate ephemeral key pairs into empty pool slots, at most max
+	// key pairs (0 fills the whole pool), using the key agreement of channel
+	private short fillPool(byte channel, short max)
+	{
+		short code = 0;
+		short generated = 0;
+
+		KeyAgreement keyAgreement = keyAgreements[channel];
+
+		// keyAgreement will no longer hold the current private key
+		keyFlags[flag(channel, FLAG_AGREEMENT_READY)] = false;
+
+		try
+		{
+			for(short slot = 0; slot < POOL_SIZE; slot++)
+			{
+				if(poolState[slot] != SLOT_EMPTY)
+				{
+					continue;
+				}
+
+				if(max != (short)0 && generated >= max)
+				{
+					break;
+				}
+
+				short offset = (short)(slot * 32);
+
+				// Generate random key (scalar >> 3), see GENERATE_KEYPAIR
+				random.generateData(skBuffer, (short)0, (short)32);
+				clamp_and_shift(skBuffer);
+
+				// Compute the corresponding public key
+				setScalar(poolPrivateKey, skBuffer, (short)0);
+				keyAgreement.init(poolPrivateKey);
+				keyAgreement.generateSecret(g256, (short)0, (short)g256.length, scratchpad, (short)0);
+
+				// Slot state is written last, so a torn write leaves the slot empty
+				persist(skBuffer, (short)0, poolScalars, offset, (short)32);
+				persist(scratchpad, (short)0, poolPublicKeys, offset, (short)32);
+				setSlotState(poolState, slot, SLOT_READY);
+
+				generated++;
+			}
+		}
+		catch (CryptoException e)
+		{code = e.getReason();}
+		catch (Exception e)
+		{code = (short)0xEEEE;}
+
+		Util.arrayFillNonAtomic(skBuffer, (short)0, (short)skBuffer.length, (byte)0);
+
+		return code;
+	}
+
+	// Compute the X coordinates of s * G and (s + 1) * G (s mod r) into out,
+	// using the key agreement of channel
+	private void scalarMultBasePair(byte channel, byte[] s, short sOff, byte[] out, short outOff)
+	{
+		KeyAgreement keyAgreement = keyAgreements[channel];
+
+		// keyAgreement will no longer hold the current private key
+		keyFlags[flag(channel, FLAG_AGREEMENT_READY)] = false;
+
+		// poolPrivateKey keeps the domain parameters set at install time
+		setScalar(poolPrivateKey, s, sOff);
+		keyAgreement.init(poolPrivateKey);
+		keyAgreement.generateSecret(g256, (short)0, (short)g256.length, out, outOff);
+
+		modArith.addMod(s, sOff, ModArith.one, (short)0, r256, skBuffer, (short)0);
+
+		setScalar(poolPrivateKey, skBuffer, (short)0);
+		keyAgreement.init(poolPrivateKey);
+		keyAgreement.generateSecret(g256, (short)0, (short)g256.length, out, (short)(outOff + 32));
+
+		Util.arrayFillNonAtomic(skBuffer, (short)0, (short)skBuffer.length, (byte)0);
+	}
+
+	// Check the coordinates sent by the host (Y, Edwards x, Edwards y, MSByte
+	// first) for the point P = s * G, given X(P) and X(P + G) computed on card,
+	// and output the encoded Ed25519 point. Needs 9 multiplications mod p
+	private boolean completePoint(byte[] xs, short xsOff, byte[] in, short inOff, byte[] enc, short encOff)
+	{
+		final short xW = xsOff;
+		final short x1W = (short)(xsOff + 32);
+		final short yW = inOff;
+		final short xE = (short)(inOff + 32);
+		final short yE = (short)(inOff + 64);
+
+		// Temporaries in scratchpad
+		final short t1 = 0;
+		final short t2 = 32;
+		final short t3 = 64;
+
+		// Coordinates must be reduced, P = G is ambiguous below
+		if(!ModArith.lessThan(in, yW, p256, (short)0, (short)32) ||
+		   !ModArith.lessThan(in, xE, p256, (short)0, (short)32) ||
+		   !ModArith.lessThan(in, yE, p256, (short)0, (short)32) ||
+		   Util.arrayCompare(xs, xW, g256, (short)1, (short)32) == 0)
+		{
+			return false;
+		}
+
+		// Y^2 = X^3 + a X + b
+		modArith.mulMod(in, yW, in, yW, p256, ModArith.muP, scratchpad, t1);
+		modArith.mulMod(xs, xW, xs, xW, p256, ModArith.muP, scratchpad, t2);
+		modArith.mulMod(scratchpad, t2, xs, xW, p256, ModArith.muP, scratchpad, t2);
+		modArith.mulMod(a256, (short)0, xs, xW, p256, ModArith.muP, scratchpad, t3);
+		modArith.addMod(scratchpad, t2, scratchpad, t3, p256, scratchpad, t2);
+		modArith.addMod(scratchpad, t2, b256, (short)0, p256, scratchpad, t2);
+
+		if(Util.arrayCompare(scratchpad, t1, scratchpad, t2, (short)32) != 0)
+		{
+			return false;
+		}
+
+		// X(P + G) (xG - X)^2 = (yG - Y)^2 - (X + xG) (xG - X)^2, which fixes the sign of Y
+		modArith.subMod(g256, (short)1, xs, xW, p256, scratchpad, t1);
+		modArith.mulMod(scratchpad, t1, scratchpad, t1, p256, ModArith.muP, scratchpad, t1);
+		modArith.addMod(xs, x1W, xs, xW, p256, scratchpad, t2);
+		modArith.addMod(scratchpad, t2, g256, (short)1, p256, scratchpad, t2);
+		modArith.mulMod(scratchpad, t2, scratchpad, t1, p256, ModArith.muP, scratchpad, t1);
+		modArith.subMod(g256, (short)33, in, yW, p256, scratchpad, t2);
+		modArith.mulMod(scratchpad, t2, scratchpad, t2, p256, ModArith.muP, scratchpad, t2);
+
+		if(Util.arrayCompare(scratchpad, t1, scratchpad, t2, (short)32) != 0)
+		{
+			return false;
+		}
+
+		// Edwards y (u + 1) = u - 1 and x Y = c u, with u = X - A/3
+		modArith.subMod(xs, xW, aDiv3, (short)0, p256, scratchpad, t1);
+		modArith.addMod(scratchpad, t1, ModArith.one, (short)0, p256, scratchpad, t2);
+		modArith.mulMod(in, yE, scratchpad, t2, p256, ModArith.muP, scratchpad, t2);
+		modArith.subMod(scratchpad, t1, ModArith.one, (short)0, p256, scratchpad, t3);
+
+		if(Util.arrayCompare(scratchpad, t2, scratchpad, t3, (short)32) != 0)
+		{
+			return false;
+		}
+
+		modArith.mulMod(in, xE, in, yW, p256, ModArith.muP, scratchpad, t2);
+		modArith.mulMod(sqrtM486664, (short)0, scratchpad, t1, p256, ModArith.muP, scratchpad, t3);
+
+		if(Util.arrayCompare(scratchpad, t2, scratchpad, t3, (short)32) != 0)
+		{
+			return false;
+		}
+
+		// Encoding: Edwards y LSByte first, sign of Edwards x in the top bit
+		for(short i = 0; i < 32; i++)
+		{
+			scratchpad[(short)(t1 + i)] = in[(short)(yE + 31 - i)];
+		}
+
+		scratchpad[(short)(t1 + 31)] |= (byte)((in[(short)(xE + 31)] & 0x01) << 7);
+
+		persist(scratchpad, t1, enc, encOff, (short)32);
+
+		return true;
+	}
+
+	// Diagnostics build: P2 is the operation (Diagnostics.ARITH_*), the input
+	// a || b (a 64 byte x for ARITH_REDUCE), each smaller than the modulus.
+	// Outputs the 32 byte result, MSByte first
+	private void testArithmetic(APDU apdu, short in_length)
+	{
+		byte[] buf = apdu.getBuffer();
+		byte op = (byte)(buf[ISO7816.OFFSET_P2] & ~Diagnostics.ARITH_MOD_R);
+		boolean modR = (buf[ISO7816.OFFSET_P2] & Diagnostics.ARITH_MOD_R) != 0;
+		byte[] m = modR ? r256 : p256;
+		byte[] mu = modR ? ModArith.muR : ModArith.muP;
+
+		if(in_length != (short)64)
+		{
+			ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+		}
+
+		Util.arrayCopyNonAtomic(buf, ISO7816.OFFSET_CDATA, scratchpad, (short)0, (short)64);
+
+		switch(op)
+		{
+			case Diagnostics.ARITH_MUL:
+				modArith.mulMod(scratchpad, (short)0, scratchpad, (short)32, m, mu, buf, (short)0);
+			break;
+
+			case Diagnostics.ARITH_ADD:
+				modArith.addMod(scratchpad, (short)0, scratchpad, (short)32, m, buf, (short)0);
+			break;
+
+			case Diagnostics.ARITH_SUB:
+				modArith.subMod(scratchpad, (short)0, scratchpad, (short)32, m, buf, (short)0);
+			break;
+
+			case Diagnostics.ARITH_REDUCE:
+				modArith.reduce(scratchpad, (short)0, m, mu, buf, (short)0);
+			break;
+
+			default:
+				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+		}
+
+		Util.arrayFillNonAtomic(scratchpad, (short)0, (short)scratchpad.length, (byte)0);
+
+		apdu.setOutgoingAndSend((short) 0, (short) 32);
+	}
+
+	// Count the Ed25519 nonces of channel ready to be used
+	private short countReadyNonces(byte channel)
+	{
+		short count = 0;
+		short first = (short)(channel * NONCE_POOL_SIZE);
+
+		for(short slot = first; slot < (short)(first + NONCE_POOL_SIZE); slot++)
+		{
+			if(nonceState[slot] == SLOT_READY)
+			{
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	public void process(APDU apdu)
+	{
+		if(Diagnostics.ENABLED)
+		{
+			// Count commands rejected with an error status word
+			try
+			{
+				processCommand(apdu);
+			}
+			catch (ISOException e)
+			{
+				diagnostics.countStatusWord();
+				throw e;
+			}
+		}
+		else
+		{
+			processCommand(apdu);
+		}
+	}
+
+	private void processCommand(APDU apdu)
 	{
 		short code = 0;
 		apdu.setIncomingAndReceive();
@@ -206,6 +768,11 @@ public class Curve25519Test extends Applet
 		
 		byte[] buf = apdu.getBuffer();
 
+		// Each logical channel has its own private key and key agreement
+		final byte channel = APDU.getCLAChannel();
+		final ECPrivateKey ecPrivateKey = ecPrivateKeys[channel];
+		final KeyAgreement keyAgreement = keyAgreements[channel];
+
 		if (selectingApplet()) 
 		{
 			Util.setShort(buf, (short) 0, VERSION_NUMBER);
@@ -213,6 +780,11 @@ public class Curve25519Test extends Applet
 			return;
 		}
 
+		if(Diagnostics.ENABLED)
+		{
+			diagnostics.countCommand(buf[ISO7816.OFFSET_INS]);
+		}
+
 		switch (buf[ISO7816.OFFSET_INS]) 
 		{
 			// Generate a random keypair on card
@@ -221,19 +793,15 @@ public class Curve25519Test extends Applet
 			case GENERATE_KEYPAIR:	
 			
 				// Generate random key
-				RandomData r = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
-				r.generateData(skBuffer, (short)0, (short)32);
-
-				// Curve25519 clamping (not fully needed due to shift below)
-				skBuffer[0] &= (byte)0x7F;
-				skBuffer[0] |= (byte)0x40;
-				skBuffer[31] &= (byte)0xF8;
+				random.generateData(skBuffer, (short)0, (short)32);
 
-				// Shift by 3 (the three remaining double operations are done on the PC side)
-				shift_array_right_by_3(skBuffer);
+				// Curve25519 clamping and shift by 3 (the three remaining double
+				// operations are done on the PC side)
+				clamp_and_shift(skBuffer);
 
+				invalidateKey(channel);
 
-				code = initKeys();
+				code = initKeys(ecPrivateKey);
 
 				if(code == 0)
 				{
@@ -241,7 +809,7 @@ public class Curve25519Test extends Applet
 					try
 					{
 						// Set (scalar >> 3)
-						ecPrivateKey.setS(skBuffer, (short)0, (short)skBuffer.length);
+						setScalar(ecPrivateKey, skBuffer, (short)0);
 
 						// NOTE: This is debug / PoC code only, NEVER use in real code ...
 						// Output the private key for debug purposes (OBVIOUSLY)
@@ -251,6 +819,8 @@ public class Curve25519Test extends Applet
 						keyAgreement.init(ecPrivateKey); 
 						short len = keyAgreement.generateSecret(g256, (short)0, (short)g256.length, buf, (short)32);
 
+						setKeyLoaded(channel, buf, (short)32, true, true);
+
 						apdu.setOutgoingAndSend((short) 0, (short)64);
 					} 
 					catch (CryptoException e)      
@@ -261,15 +831,12 @@ public class Curve25519Test extends Applet
 				
 				if(code != (short)0)
 				{
-					Util.setShort(buf, (short) 0, code);
-					apdu.setOutgoingAndSend((short) 0, (short) 2);
-				}
-				else{
-					keyValid = true;
+					sendErrorCode(apdu, code);
 				}
 			break;
 			
 			// Load a private key and generate the corresponding public key
+			// P1: OPTION_VOLATILE makes the key only usable until deselect or card reset
 			case LOAD_PRIVATE_KEY: 
 			
 				if(in_length != (short)32)
@@ -277,36 +844,55 @@ public class Curve25519Test extends Applet
 					ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 				}
 				
-				if(initKeys() != 0)
+				final boolean persistent = (buf[ISO7816.OFFSET_P1] & OPTION_VOLATILE) == 0;
+
+				invalidateKey(channel);
+
+				if(runPhase(Diagnostics.PHASE_INIT_KEYS))
+				{
+					code = initKeys(ecPrivateKey);
+				}
+
+				if(code != 0)
 				{
-					Util.setShort(buf, (short) 0, code);
-					apdu.setOutgoingAndSend((short) 0, (short) 2);
+					sendErrorCode(apdu, code);
 					return;
 				}
 				
 				// NOTE: Input expected MSByte first
 				Util.arrayCopy(buf, ISO7816.OFFSET_CDATA, skBuffer, (short)0, (short)skBuffer.length);
 				
-				// Curve25519 clamping 
-				skBuffer[0] &= (byte)0x7F;
-				skBuffer[0] |= (byte)0x40;
-				skBuffer[31] &= (byte)0xF8;
-
-				// Shift by 3
-				shift_array_right_by_3(skBuffer);
+				// Curve25519 clamping and shift by 3
+				clamp_and_shift(skBuffer);
 
 				try 
 				{
 					// Set scalar
-					ecPrivateKey.setS(skBuffer, (short)0, (short)skBuffer.length);
+					if(runPhase(Diagnostics.PHASE_SET_S))
+					{
+						setScalar(ecPrivateKey, skBuffer, (short)0);
+					}
 					
 					// Compute the corresponding public key
 					// NOTE: To make this a valid Curve25519 standard public key,
 					//       3 double operations are required on the PC side
-					keyAgreement.init(ecPrivateKey); 
+					if(runPhase(Diagnostics.PHASE_AGREEMENT_INIT))
+					{
+						keyAgreement.init(ecPrivateKey);
+					}
 					
-					short len = keyAgreement.generateSecret(g256, (short)0, (short)g256.length, buf, (short)0);
+					if(runPhase(Diagnostics.PHASE_GENERATE_SECRET))
+					{
+						keyAgreement.generateSecret(g256, (short)0, (short)g256.length, buf, (short)0);
+					}
+					else
+					{
+						// buf still holds input or key material, never send it back
+						Util.arrayFillNonAtomic(buf, (short)0, (short)32, (byte)0);
+					}
 					
+					setKeyLoaded(channel, buf, (short)0, persistent, true);
+
 					apdu.setOutgoingAndSend((short) 0, (short)32);
 				} 
 				catch (CryptoException e)      
@@ -316,18 +902,13 @@ public class Curve25519Test extends Applet
 
 				if(code != (short)0)
 				{
-					Util.setShort(buf, (short) 0, code);
-					apdu.setOutgoingAndSend((short) 0, (short) 2);
-				}
-				else
-				{
-					keyValid = true;
+					sendErrorCode(apdu, code);
 				}
 			break;
 			
 			// Compute shared secret given a public key (X, Y in Weierstrass form)
 			case COMPUTE_SHARED_SECRET: 
-				if(in_length != (short)64 || !keyValid)
+				if(in_length != (short)64 || !isKeyUsable(channel))
 				{
 					ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 				}
@@ -340,9 +921,27 @@ public class Curve25519Test extends Applet
 				
 				try 
 				{
-					// Compute the corresponding shared secret key
-					keyAgreement.init(ecPrivateKey); 
-					short len = keyAgreement.generateSecret(scratchpad, (short)0, (short)65, buf, (short)0);
+					// Compute the corresponding shared secret key, keyAgreement stays
+					// initialized with the current private key until card reset
+					if(!keyFlags[flag(channel, FLAG_AGREEMENT_READY)])
+					{
+						if(runPhase(Diagnostics.PHASE_AGREEMENT_INIT))
+						{
+							keyAgreement.init(ecPrivateKey);
+						}
+
+						keyFlags[flag(channel, FLAG_AGREEMENT_READY)] = true;
+					}
+
+					if(runPhase(Diagnostics.PHASE_GENERATE_SECRET))
+					{
+						keyAgreement.generateSecret(scratchpad, (short)0, (short)65, buf, (short)0);
+					}
+					else
+					{
+						// buf still holds input or key material, never send it back
+						Util.arrayFillNonAtomic(buf, (short)0, (short)32, (byte)0);
+					}
 					
 					// Send back 32-byte shared secret (again, to be doubled three times)
 					apdu.setOutgoingAndSend((short) 0, (short)32);
@@ -354,12 +953,406 @@ public class Curve25519Test extends Applet
 					
 				if(code != (short)0)
 				{
-					Util.setShort(buf, (short) 0, code);
-					apdu.setOutgoingAndSend((short) 0, (short) 2);
+					sendErrorCode(apdu, code);
 				}
 				
 			break;
 			
+			// Fill the ephemeral key pool, meant to be run while the card is idle
+			// P1: maximum number of key pairs to generate (0 fills the whole pool)
+			// Outputs the number of key pairs ready to be taken
+			case PRECOMPUTE_EPHEMERAL:
+
+				code = fillPool(channel, (short)(buf[ISO7816.OFFSET_P1] & 0xFF));
+
+				if(code != (short)0)
+				{
+					sendErrorCode(apdu, code);
+				}
+				else
+				{
+					buf[0] = (byte)countReadySlots();
+					apdu.setOutgoingAndSend((short) 0, (short) 1);
+				}
+			break;
+
+			// Take the next precomputed ephemeral key pair from the pool, make it
+			// the current private key and output its public key (no ECC operation)
+			case TAKE_EPHEMERAL:
+			{
+				short slot = 0;
+
+				while(slot < POOL_SIZE && poolState[slot] != SLOT_READY)
+				{
+					slot++;
+				}
+
+				if(slot == POOL_SIZE)
+				{
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				}
+
+				// Mark as used first, so a key pair is never handed out twice
+				setSlotState(poolState, slot, SLOT_EMPTY);
+
+				invalidateKey(channel);
+
+				short offset = (short)(slot * 32);
+
+				try
+				{
+					// Set (scalar >> 3), the domain parameters are set at install
+					setScalar(ecPrivateKey, poolScalars, offset);
+
+					Util.arrayCopy(poolPublicKeys, offset, buf, (short)0, (short)32);
+
+					setKeyLoaded(channel, buf, (short)0, false, false);
+				}
+				catch (CryptoException e)
+				{code = e.getReason();}
+				catch (Exception e)
+				{code = (short)0xEEEE;}
+
+				erase(poolScalars, offset, (short)32);
+
+				if(code != (short)0)
+				{
+					sendErrorCode(apdu, code);
+				}
+				else
+				{
+					apdu.setOutgoingAndSend((short) 0, (short) 32);
+				}
+			}
+			break;
+
+			// Cheap check whether the current private key is still usable, e.g.
+			// after a host reconnect. Outputs status bits, the number of ready
+			// ephemeral key pairs and the public key (X, MSByte first)
+			case KEY_STATUS:
+
+				buf[0] = (byte)0;
+				Util.arrayFillNonAtomic(buf, (short)2, (short)32, (byte)0);
+
+				if(isKeyUsable(channel))
+				{
+					buf[0] |= STATUS_KEY_VALID;
+					Util.arrayCopy(publicKeys, (short)(channel * 32), buf, (short)2, (short)32);
+				}
+
+				if(keyPersistent[channel])
+				{
+					buf[0] |= STATUS_PERSISTENT;
+				}
+
+				if(keyFlags[flag(channel, FLAG_AGREEMENT_READY)])
+				{
+					buf[0] |= STATUS_AGREEMENT_READY;
+				}
+
+				buf[1] = (byte)countReadySlots();
+
+				apdu.setOutgoingAndSend((short) 0, (short) 34);
+			break;
+
+			// Load an Ed25519 private key (32 byte seed as in RFC 8032) and
+			// output X(a * G) and X((a + 1) * G). The key can be used once the
+			// host has completed the public key with SET_SIGNING_KEY_POINT.
+			// Each logical channel has its own signing key
+			case LOAD_SIGNING_KEY:
+			{
+				short signOffset = (short)(channel * 32);
+
+				if(sha512 == null)
+				{
+					ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+				}
+
+				if(in_length != (short)32)
+				{
+					ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+				}
+
+				setSignState(channel, SLOT_EMPTY);
+
+				try
+				{
+					// a = clamp(SHA-512(seed)[0..31]), LSByte first
+					sha512.reset();
+					sha512.doFinal(buf, ISO7816.OFFSET_CDATA, (short)32, scratchpad, (short)0);
+
+					scratchpad[0] &= (byte)0xF8;
+					scratchpad[31] &= (byte)0x7F;
+					scratchpad[31] |= (byte)0x40;
+
+					// MSByte first and reduced mod r (same public key and signatures)
+					Util.arrayFillNonAtomic(scratchpad, (short)64, (short)32, (byte)0);
+
+					for(short i = 0; i < 32; i++)
+					{
+						scratchpad[(short)(96 + i)] = scratchpad[(short)(31 - i)];
+					}
+
+					modArith.reduce(scratchpad, (short)64, r256, ModArith.muR, scratchpad, (short)0);
+					persist(scratchpad, (short)0, signScalars, signOffset, (short)32);
+					Util.arrayFillNonAtomic(scratchpad, (short)0, (short)scratchpad.length, (byte)0);
+
+					scalarMultBasePair(channel, signScalars, signOffset, scratchpad, (short)0);
+
+					persist(scratchpad, (short)0, signPending, (short)(channel * 64), (short)64);
+					setSignState(channel, SLOT_PENDING);
+
+					Util.arrayCopyNonAtomic(scratchpad, (short)0, buf, (short)0, (short)64);
+				}
+				catch (CryptoException e)
+				{code = e.getReason();}
+				catch (Exception e)
+				{code = (short)0xEEEE;}
+
+				if(code != (short)0)
+				{
+					sendErrorCode(apdu, code);
+				}
+				else
+				{
+					apdu.setOutgoingAndSend((short) 0, (short) 64);
+				}
+			}
+			break;
+
+			// Complete the Ed25519 public key: input Y, Edwards x and Edwards y
+			// (MSByte first) of a * G, checked on card. Outputs the encoded public key
+			case SET_SIGNING_KEY_POINT:
+
+				if(in_length != (short)96)
+				{
+					ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+				}
+
+				if(signStates[channel] != SLOT_PENDING)
+				{
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				}
+
+				if(!completePoint(signPending, (short)(channel * 64), buf, ISO7816.OFFSET_CDATA, signPublicKeys, (short)(channel * 32)))
+				{
+					ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+				}
+
+				setSignState(channel, SLOT_READY);
+
+				Util.arrayCopyNonAtomic(signPublicKeys, (short)(channel * 32), buf, (short)0, (short)32);
+				apdu.setOutgoingAndSend((short) 0, (short) 32);
+			break;
+
+			// Precompute one Ed25519 nonce r, meant to be run while the card is
+			// idle. Outputs the slot, X(r * G) and X((r + 1) * G); the host
+			// completes the point with COMMIT_NONCE. Slots are numbered per
+			// logical channel, nonces are only used by SIGN on the same channel
+			case PRECOMPUTE_NONCE:
+			{
+				// Prefer empty slots, then ones never committed by the host
+				short first = (short)(channel * NONCE_POOL_SIZE);
+				short end = (short)(first + NONCE_POOL_SIZE);
+				short slot = first;
+
+				while(slot < end && nonceState[slot] != SLOT_EMPTY)
+				{
+					slot++;
+				}
+
+				if(slot == end)
+				{
+					slot = first;
+
+					while(slot < end && nonceState[slot] != SLOT_PENDING)
+					{
+						slot++;
+					}
+				}
+
+				if(slot == end)
+				{
+					ISOException.throwIt(ISO7816.SW_FILE_FULL);
+				}
+
+				setSlotState(nonceState, slot, SLOT_EMPTY);
+
+				try
+				{
+					// Random r < 2^252 < r256
+					random.generateData(skBuffer, (short)0, (short)32);
+					skBuffer[0] &= (byte)0x0F;
+
+					persist(skBuffer, (short)0, nonceScalars, (short)(slot * 32), (short)32);
+					Util.arrayFillNonAtomic(skBuffer, (short)0, (short)skBuffer.length, (byte)0);
+
+					scalarMultBasePair(channel, nonceScalars, (short)(slot * 32), scratchpad, (short)0);
+
+					persist(scratchpad, (short)0, noncePending, (short)(slot * 64), (short)64);
+					setSlotState(nonceState, slot, SLOT_PENDING);
+
+					buf[0] = (byte)(slot - first);
+					Util.arrayCopyNonAtomic(scratchpad, (short)0, buf, (short)1, (short)64);
+				}
+				catch (CryptoException e)
+				{code = e.getReason();}
+				catch (Exception e)
+				{code = (short)0xEEEE;}
+
+				if(code != (short)0)
+				{
+					sendErrorCode(apdu, code);
+				}
+				else
+				{
+					apdu.setOutgoingAndSend((short) 0, (short) 65);
+				}
+			}
+			break;
+
+			// Complete a precomputed nonce point: P1 is the slot, input Y,
+			// Edwards x and Edwards y (MSByte first) of r * G, checked on card.
+			// Outputs the number of nonces ready to be used
+			case COMMIT_NONCE:
+			{
+				short slot = (short)(buf[ISO7816.OFFSET_P1] & 0xFF);
+
+				if(in_length != (short)96)
+				{
+					ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+				}
+
+				if(slot >= NONCE_POOL_SIZE)
+				{
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				}
+
+				slot += (short)(channel * NONCE_POOL_SIZE);
+
+				if(nonceState[slot] != SLOT_PENDING)
+				{
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				}
+
+				if(!completePoint(noncePending, (short)(slot * 64), buf, ISO7816.OFFSET_CDATA, noncePoints, (short)(slot * 32)))
+				{
+					ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+				}
+
+				setSlotState(nonceState, slot, SLOT_READY);
+
+				buf[0] = (byte)countReadyNonces(channel);
+				apdu.setOutgoingAndSend((short) 0, (short) 1);
+			}
+			break;
+
+			// Ed25519 signature of the input message with the next precomputed
+			// nonce of the channel: only hashing and arithmetic mod r, no ECC
+			// operation. Outputs R || S (64 bytes, as in RFC 8032)
+			case SIGN:
+			{
+				if(sha512 == null)
+				{
+					ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+				}
+
+				short end = (short)((channel + 1) * NONCE_POOL_SIZE);
+				short slot = (short)(channel * NONCE_POOL_SIZE);
+
+				while(slot < end && nonceState[slot] != SLOT_READY)
+				{
+					slot++;
+				}
+
+				if(signStates[channel] != SLOT_READY || slot == end)
+				{
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				}
+
+				// Mark as used first, a nonce must never be used twice
+				setSlotState(nonceState, slot, SLOT_EMPTY);
+
+				short offset = (short)(slot * 32);
+
+				try
+				{
+					// k = SHA-512(R || A || M), LSByte first
+					sha512.reset();
+					sha512.update(noncePoints, offset, (short)32);
+					sha512.update(signPublicKeys, (short)(channel * 32), (short)32);
+					sha512.doFinal(buf, ISO7816.OFFSET_CDATA, in_length, scratchpad, (short)0);
+
+					for(short i = 0; i < 64; i++)
+					{
+						scratchpad[(short)(64 + i)] = scratchpad[(short)(63 - i)];
+					}
+
+					// S = r + k * a mod r
+					modArith.reduce(scratchpad, (short)64, r256, ModArith.muR, scratchpad, (short)0);
+					modArith.mulMod(scratchpad, (short)0, signScalars, (short)(channel * 32), r256, ModArith.muR, scratchpad, (short)32);
+					modArith.addMod(scratchpad, (short)32, nonceScalars, offset, r256, scratchpad, (short)32);
+
+					// R, S LSByte first
+					Util.arrayCopyNonAtomic(noncePoints, offset, buf, (short)0, (short)32);
+
+					for(short i = 0; i < 32; i++)
+					{
+						buf[(short)(32 + i)] = scratchpad[(short)(63 - i)];
+					}
+				}
+				catch (CryptoException e)
+				{code = e.getReason();}
+				catch (Exception e)
+				{code = (short)0xEEEE;}
+
+				erase(nonceScalars, offset, (short)32);
+				Util.arrayFillNonAtomic(scratchpad, (short)0, (short)scratchpad.length, (byte)0);
+
+				if(code != (short)0)
+				{
+					sendErrorCode(apdu, code);
+				}
+				else
+				{
+					apdu.setOutgoingAndSend((short) 0, (short) 64);
+				}
+			}
+			break;
+
+			// Diagnostics build only: read the profiling counters (P1 = 0x00),
+			// read and clear them (P1 = 0x01), skip phases of LOAD_PRIVATE_KEY
+			// and COMPUTE_SHARED_SECRET for timing measurements (P1 = 0x02,
+			// P2: Diagnostics.PHASE_* bits, 0 runs all phases) or run one
+			// ModArith operation (P1 = 0x03, see testArithmetic)
+			case DIAGNOSTICS:
+
+				if(Diagnostics.ENABLED)
+				{
+					if(buf[ISO7816.OFFSET_P1] == Diagnostics.ARITHMETIC)
+					{
+						testArithmetic(apdu, in_length);
+						break;
+					}
+
+					// Keys loaded while a phase is skipped are wrong and their key
+					// state is stale, so no key stays usable across a mask change
+					if(buf[ISO7816.OFFSET_P1] == Diagnostics.SKIP_PHASES)
+					{
+						for(byte c = 0; c < MAX_CHANNELS; c++)
+						{
+							invalidateKey(c);
+						}
+					}
+
+					diagnostics.process(apdu);
+				}
+				else
+				{
+					ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+				}
+			break;
+
 			default:
 				ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
 		}
@@ -0,0 +1,175 @@
+/**
+
+ Profiling counters for the diagnostics build of Curve25519Test
+
+ ENABLED is a compile-time constant. In the normal build it is false and
+ javac drops the code guarded by it, so the applet never creates the
+ counters and answers DIAGNOSTICS with 6D00. The class itself is still
+ part of curve25519.cap, since "ant curve" compiles all of src/curve25519,
+ as are the applet methods only the diagnostics build calls.
+ "ant curve-diag" builds curve25519_diag.cap with ENABLED = true.
+
+ =======================================================================
+
+ This is free and unencumbered software released into the public domain.
+
+ Anyone is free to copy, modify, publish, use, compile, sell, or
+ distribute this software, either in source code form or as a compiled
+ binary, for any purpose, commercial or non-commercial, and by any
+ means.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ OTHER DEALINGS IN THE SOFTWARE.
+
+**/
+
+package curve25519;
+
+import javacard.framework.APDU;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+// Counters are kept in RAM (CLEAR_ON_RESET), so counting adds no EEPROM
+// writes of its own. They are lost on card reset.
+final class Diagnostics
+{
+	// Build switch, set to true by "ant curve-diag"
+	static final boolean ENABLED = false;
+
+	// Phases of LOAD_PRIVATE_KEY and COMPUTE_SHARED_SECRET that can be
+	// skipped, so the host can time runs with and without a phase. Results
+	// are wrong while a phase is skipped
+	static final byte PHASE_INIT_KEYS = (byte)0x01;
+	static final byte PHASE_SET_S = (byte)0x02;
+	static final byte PHASE_AGREEMENT_INIT = (byte)0x04;
+	static final byte PHASE_GENERATE_SECRET = (byte)0x08;
+	static final byte PHASE_KEY_STATE = (byte)0x10;
+
+	// P1 of the diagnostics command. SKIP_PHASES also makes the applet
+	// invalidate the keys of all channels
+	private static final byte READ = (byte)0x00;
+	private static final byte READ_AND_CLEAR = (byte)0x01;
+	static final byte SKIP_PHASES = (byte)0x02;
+
+	// P1 = ARITHMETIC runs one ModArith operation (done by the applet,
+	// which holds the moduli) on the input, so the host can compare it with
+	// its own results. P2: operation, ARITH_MOD_R selects r instead of p
+	static final byte ARITHMETIC = (byte)0x03;
+	static final byte ARITH_MUL = (byte)0x00;
+	static final byte ARITH_ADD = (byte)0x01;
+	static final byte ARITH_SUB = (byte)0x02;
+	static final byte ARITH_REDUCE = (byte)0x03;
+	static final byte ARITH_MOD_R = (byte)0x80;
+
+	// Counter layout: invocations per INS (0x00 to 0x0F, other INS in slot
+	// 0), error codes (CryptoException reasons 1 to 5, 0xEEEE, other codes,
+	// commands rejected with an error status word), EEPROM writes (key
+	// parameters, persistent arrays and fields)
+	private static final short INS_COUNTERS = 0;
+	private static final short INS_COUNT = 16;
+	private static final short ERROR_COUNTERS = 16;
+	private static final short ERROR_EEEE = 6;
+	private static final short ERROR_OTHER = 0;
+	private static final short ERROR_STATUS_WORD = 7;
+	private static final short KEY_WRITES = 24;
+	private static final short ARRAY_WRITES = 25;
+	private static final short COUNTER_COUNT = 26;
+
+	private short[] counters;
+	private byte[] skipped;
+
+	Diagnostics()
+	{
+		counters = JCSystem.makeTransientShortArray(COUNTER_COUNT, JCSystem.CLEAR_ON_RESET);
+		skipped = JCSystem.makeTransientByteArray((short)1, JCSystem.CLEAR_ON_RESET);
+	}
+
+	void countCommand(byte ins)
+	{
+		short slot = (ins >= 0 && ins < INS_COUNT) ? (short)ins : (short)0;
+
+		counters[(short)(INS_COUNTERS + slot)]++;
+	}
+
+	// Error code sent back in a 2 byte response
+	void countError(short code)
+	{
+		short slot = ERROR_OTHER;
+
+		if(code >= 1 && code <= 5)
+		{
+			slot = code;
+		}
+		else if(code == (short)0xEEEE)
+		{
+			slot = ERROR_EEEE;
+		}
+
+		counters[(short)(ERROR_COUNTERS + slot)]++;
+	}
+
+	void countStatusWord()
+	{
+		counters[(short)(ERROR_COUNTERS + ERROR_STATUS_WORD)]++;
+	}
+
+	void countWrites(short keyWrites, short arrayWrites)
+	{
+		counters[KEY_WRITES] += keyWrites;
+		counters[ARRAY_WRITES] += arrayWrites;
+	}
+
+	boolean skip(byte phase)
+	{
+		return (skipped[0] & phase) != 0;
+	}
+
+	// P1 = READ, READ_AND_CLEAR or SKIP_PHASES (P2: phases to skip).
+	// Outputs the counters (MSByte first) and the skipped phases
+	void process(APDU apdu)
+	{
+		byte[] buf = apdu.getBuffer();
+		byte p1 = buf[ISO7816.OFFSET_P1];
+
+		switch (p1)
+		{
+			case READ:
+			case READ_AND_CLEAR:
+			break;
+
+			case SKIP_PHASES:
+				skipped[0] = buf[ISO7816.OFFSET_P2];
+			break;
+
+			default:
+				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+		}
+
+		short offset = 0;
+
+		for(short i = 0; i < COUNTER_COUNT; i++)
+		{
+			offset = Util.setShort(buf, offset, counters[i]);
+		}
+
+		buf[offset] = skipped[0];
+
+		// P1 is overwritten by the output
+		if(p1 == READ_AND_CLEAR)
+		{
+			for(short i = 0; i < COUNTER_COUNT; i++)
+			{
+				counters[i] = 0;
+			}
+		}
+
+		apdu.setOutgoingAndSend((short)0, (short)(offset + 1));
+	}
+}
@@ -0,0 +1,218 @@
+/**
+
+ Modular arithmetic on 256-bit numbers for Curve25519Test
+
+ Javacard has no big number support, so the few field (mod p) and scalar
+ (mod r) operations needed for Ed25519 signing are done in software here.
+ The heavy part (scalar multiplication) is still done by the card's ECC
+ engine via KeyAgreement.
+
+ =======================================================================
+
+ This is free and unencumbered software released into the public domain.
+
+ Anyone is free to copy, modify, publish, use, compile, sell, or
+ distribute this software, either in source code form or as a compiled
+ binary, for any purpose, commercial or non-commercial, and by any
+ means.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ OTHER DEALINGS IN THE SOFTWARE.
+
+**/
+
+package curve25519;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+// All numbers are MSByte first. Operands and results of the modular
+// operations are 32 bytes long and must be smaller than the modulus.
+// Results may overlap with the operands.
+final class ModArith
+{
+	// Length of operands and moduli
+	static final short LEN = 32;
+
+	// Barrett constant floor(2^512 / p) for p = 2^255 - 19
+	static final byte[] muP = {
+		(byte)0x02,
+		(byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+		(byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x4c
+	};
+
+	// Barrett constant floor(2^512 / r) for the group order r
+	static final byte[] muR = {
+		(byte)0x0f,
+		(byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xeb,
+		(byte)0x21, (byte)0x06, (byte)0x21, (byte)0x5d, (byte)0x08, (byte)0x63, (byte)0x29, (byte)0xa7, (byte)0xed, (byte)0x9c, (byte)0xe5, (byte)0xa3, (byte)0x0a, (byte)0x2c, (byte)0x13, (byte)0x1b
+	};
+
+	static final byte[] one = {
+		(byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+		(byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x01
+	};
+
+	// Workspace layout: product (64), q1 * mu (66), q3 * m (65), remainder (33)
+	private static final short PRODUCT = 0;
+	private static final short Q2 = 64;
+	private static final short R2 = 130;
+	private static final short REM = 195;
+	private static final short WORK_LEN = 228;
+
+	private byte[] work;
+
+	ModArith()
+	{
+		work = JCSystem.makeTransientByteArray(WORK_LEN, JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	// out = a * b (aLen + bLen bytes), schoolbook multiplication on bytes
+	static void mul(byte[] a, short aOff, short aLen, byte[] b, short bOff, short bLen, byte[] out, short outOff)
+	{
+		Util.arrayFillNonAtomic(out, outOff, (short)(aLen + bLen), (byte)0);
+
+		for(short i = (short)(aLen - 1); i >= 0; i--)
+		{
+			short ai = (short)(a[(short)(aOff + i)] & 0xFF);
+			short carry = 0;
+			short k = (short)(outOff + i + bLen);
+
+			for(short j = (short)(bLen - 1); j >= 0; j--)
+			{
+				// At most 0xFFFF, the short wraps but keeps all 16 bits
+				short t = (short)((short)(ai * (short)(b[(short)(bOff + j)] & 0xFF)) + (short)(out[k] & 0xFF) + carry);
+				out[k] = (byte)t;
+				carry = (short)((t >> 8) & 0xFF);
+				k--;
+			}
+
+			out[k] = (byte)carry;
+		}
+	}
+
+	// out = a + b (len bytes), returns the carry
+	static short add(byte[] a, short aOff, byte[] b, short bOff, short len, byte[] out, short outOff)
+	{
+		short carry = 0;
+
+		for(short i = (short)(len - 1); i >= 0; i--)
+		{
+			short t = (short)((short)(a[(short)(aOff + i)] & 0xFF) + (short)(b[(short)(bOff + i)] & 0xFF) + carry);
+			out[(short)(outOff + i)] = (byte)t;
+			carry = (short)((t >> 8) & 0x01);
+		}
+
+		return carry;
+	}
+
+	// out = a - b (len bytes), returns the borrow
+	static short sub(byte[] a, short aOff, byte[] b, short bOff, short len, byte[] out, short outOff)
+	{
+		short borrow = 0;
+
+		for(short i = (short)(len - 1); i >= 0; i--)
+		{
+			short t = (short)((short)(a[(short)(aOff + i)] & 0xFF) - (short)(b[(short)(bOff + i)] & 0xFF) - borrow);
+			out[(short)(outOff + i)] = (byte)t;
+			borrow = (short)((t >> 8) & 0x01);
+		}
+
+		return borrow;
+	}
+
+	// out = a if borrow is 1, b if borrow is 0 (len bytes). Selects with a
+	// mask instead of branching, so the timing does not depend on borrow
+	static void select(short borrow, byte[] a, short aOff, byte[] b, short bOff, short len, byte[] out, short outOff)
+	{
+		// 0x00 if borrow is 1, 0xFF if borrow is 0
+		byte mask = (byte)(borrow - 1);
+		byte keep = (byte)~mask;
+
+		for(short i = 0; i < len; i++)
+		{
+			out[(short)(outOff + i)] = (byte)((a[(short)(aOff + i)] & keep) | (b[(short)(bOff + i)] & mask));
+		}
+	}
+
+	// Unsigned comparison of a and b (len bytes), returns true if a < b.
+	// Not constant time, only for public values
+	static boolean lessThan(byte[] a, short aOff, byte[] b, short bOff, short len)
+	{
+		for(short i = 0; i < len; i++)
+		{
+			short x = (short)(a[(short)(aOff + i)] & 0xFF);
+			short y = (short)(b[(short)(bOff + i)] & 0xFF);
+
+			if(x != y)
+			{
+				return x < y;
+			}
+		}
+
+		return false;
+	}
+
+	// out = x mod m for a 64 byte x (Barrett reduction, mu = floor(2^512 / m))
+	void reduce(byte[] x, short xOff, byte[] m, byte[] mu, byte[] out, short outOff)
+	{
+		// q2 = floor(x / 2^248) * mu
+		mul(x, xOff, (short)(LEN + 1), mu, (short)0, (short)(LEN + 1), work, Q2);
+
+		// q3 = floor(q2 / 2^264), r2 = (q3 * m) mod 2^264
+		mul(work, Q2, (short)(LEN + 1), m, (short)0, LEN, work, R2);
+
+		// r = (x - r2) mod 2^264 = x mod m + (0 to 2) * m
+		sub(x, (short)(xOff + LEN - 1), work, (short)(R2 + LEN), (short)(LEN + 1), work, REM);
+
+		// Two conditional subtractions, always computed and selected without
+		// branching on the (secret) result
+		for(short i = 0; i < 2; i++)
+		{
+			work[PRODUCT] = (byte)0;
+			Util.arrayCopyNonAtomic(m, (short)0, work, (short)(PRODUCT + 1), LEN);
+
+			short borrow = sub(work, REM, work, PRODUCT, (short)(LEN + 1), work, PRODUCT);
+			select(borrow, work, REM, work, PRODUCT, (short)(LEN + 1), work, REM);
+		}
+
+		Util.arrayCopyNonAtomic(work, (short)(REM + 1), out, outOff, LEN);
+	}
+
+	// out = a * b mod m
+	void mulMod(byte[] a, short aOff, byte[] b, short bOff, byte[] m, byte[] mu, byte[] out, short outOff)
+	{
+		mul(a, aOff, LEN, b, bOff, LEN, work, PRODUCT);
+		reduce(work, PRODUCT, m, mu, out, outOff);
+	}
+
+	// out = a + b mod m (m < 2^255)
+	void addMod(byte[] a, short aOff, byte[] b, short bOff, byte[] m, byte[] out, short outOff)
+	{
+		add(a, aOff, b, bOff, LEN, work, REM);
+
+		short borrow = sub(work, REM, m, (short)0, LEN, work, PRODUCT);
+		select(borrow, work, REM, work, PRODUCT, LEN, out, outOff);
+	}
+
+	// out = a - b mod m
+	void subMod(byte[] a, short aOff, byte[] b, short bOff, byte[] m, byte[] out, short outOff)
+	{
+		short borrow = sub(a, aOff, b, bOff, LEN, work, REM);
+
+		// Add m if there was a borrow, 0 otherwise
+		byte mask = (byte)(-borrow);
+
+		for(short i = 0; i < LEN; i++)
+		{
+			work[(short)(PRODUCT + i)] = (byte)(m[i] & mask);
+		}
+
+		add(work, REM, work, PRODUCT, LEN, out, outOff);
+	}
+}